@@ -24,8 +24,12 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.OperationCanceledException;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
@@ -91,6 +95,24 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
 
     static final int SUGGESTED_ENTRY_DESTINATION_TYPE = -99;
 
+    /**
+     * Directory searches that have not returned after this many milliseconds are cancelled and
+     * treated as having no results.
+     */
+    private static final long DEFAULT_DIRECTORY_SEARCH_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Passed to {@link #setQueryDebounceMillis(int)} to derive the debounce window from the
+     * user's typing speed.
+     */
+    public static final int QUERY_DEBOUNCE_ADAPTIVE = QueryScheduler.DEBOUNCE_ADAPTIVE;
+
+    /**
+     * Returned by {@link DefaultFilter#performFiltering(CharSequence)} in place of results when
+     * the constraint was superseded before the query finished.
+     */
+    private static final Object SUPERSEDED_RESULT = new Object();
+
     private final Queries.Query mQueryMode;
     private final int mQueryType;
 
@@ -200,17 +222,126 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
         public final List<RecipientEntry> nonAggregatedEntries;
         public final Set<String> existingDestinations;
         public final List<DirectorySearchParams> paramsList;
+        public final int generation;
 
         public DefaultFilterResult(List<RecipientEntry> entries,
                 LinkedHashMap<Long, List<RecipientEntry>> entryMap,
                 List<RecipientEntry> nonAggregatedEntries,
                 Set<String> existingDestinations,
-                List<DirectorySearchParams> paramsList) {
+                List<DirectorySearchParams> paramsList,
+                int generation) {
             this.entries = entries;
             this.entryMap = entryMap;
             this.nonAggregatedEntries = nonAggregatedEntries;
             this.existingDestinations = existingDestinations;
             this.paramsList = paramsList;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * An immutable copy of the results shown for a constraint, used to answer a following
+     * constraint that extends it without waiting for the provider. See
+     * {@link #setIncrementalFilteringEnabled(boolean)}.
+     */
+    private static class FilterSnapshot {
+        public final String constraint;
+        private final LinkedHashMap<Long, List<RecipientEntry>> mEntryMap;
+        private final List<RecipientEntry> mNonAggregatedEntries;
+
+        public FilterSnapshot(CharSequence constraint,
+                LinkedHashMap<Long, List<RecipientEntry>> entryMap,
+                List<RecipientEntry> nonAggregatedEntries) {
+            this.constraint = constraint.toString().toLowerCase();
+            mEntryMap = copyEntryMap(entryMap);
+            mNonAggregatedEntries = new ArrayList<RecipientEntry>(nonAggregatedEntries);
+        }
+
+        /** Whether every result for the given constraint must also be a result for ours. */
+        public boolean canNarrowTo(CharSequence newConstraint) {
+            return newConstraint.length() > constraint.length()
+                    && newConstraint.toString().toLowerCase().startsWith(constraint);
+        }
+
+        /**
+         * Returns a snapshot holding only the contacts that still match the given constraint.
+         * A contact is kept together with all of its destinations if any of them matches.
+         */
+        public FilterSnapshot narrow(CharSequence newConstraint) {
+            final String prefix = newConstraint.toString().toLowerCase();
+            final LinkedHashMap<Long, List<RecipientEntry>> entryMap =
+                    new LinkedHashMap<Long, List<RecipientEntry>>();
+            for (Map.Entry<Long, List<RecipientEntry>> mapEntry : mEntryMap.entrySet()) {
+                for (RecipientEntry entry : mapEntry.getValue()) {
+                    if (matches(entry, prefix)) {
+                        entryMap.put(mapEntry.getKey(), mapEntry.getValue());
+                        break;
+                    }
+                }
+            }
+            final List<RecipientEntry> nonAggregatedEntries = new ArrayList<RecipientEntry>();
+            for (RecipientEntry entry : mNonAggregatedEntries) {
+                if (matches(entry, prefix)) {
+                    nonAggregatedEntries.add(entry);
+                }
+            }
+            return new FilterSnapshot(newConstraint, entryMap, nonAggregatedEntries);
+        }
+
+        public LinkedHashMap<Long, List<RecipientEntry>> getEntryMap() {
+            return copyEntryMap(mEntryMap);
+        }
+
+        public List<RecipientEntry> getNonAggregatedEntries() {
+            return new ArrayList<RecipientEntry>(mNonAggregatedEntries);
+        }
+
+        public Set<String> getExistingDestinations() {
+            final Set<String> destinations = new HashSet<String>();
+            for (List<RecipientEntry> entryList : mEntryMap.values()) {
+                for (RecipientEntry entry : entryList) {
+                    destinations.add(entry.getDestination());
+                }
+            }
+            for (RecipientEntry entry : mNonAggregatedEntries) {
+                destinations.add(entry.getDestination());
+            }
+            return destinations;
+        }
+
+        private static LinkedHashMap<Long, List<RecipientEntry>> copyEntryMap(
+                LinkedHashMap<Long, List<RecipientEntry>> entryMap) {
+            final LinkedHashMap<Long, List<RecipientEntry>> copy =
+                    new LinkedHashMap<Long, List<RecipientEntry>>();
+            for (Map.Entry<Long, List<RecipientEntry>> mapEntry : entryMap.entrySet()) {
+                copy.put(mapEntry.getKey(), new ArrayList<RecipientEntry>(mapEntry.getValue()));
+            }
+            return copy;
+        }
+
+        /**
+         * Mirrors the provider's filter closely enough for narrowing: the constraint must be a
+         * prefix of the destination or of a word in the display name. Misses are harmless,
+         * since the provider results replace the narrowed ones shortly afterwards.
+         */
+        private static boolean matches(RecipientEntry entry, String prefix) {
+            final String destination = entry.getDestination();
+            if (destination != null && destination.toLowerCase().startsWith(prefix)) {
+                return true;
+            }
+            final String displayName = entry.getDisplayName();
+            if (displayName == null) {
+                return false;
+            }
+            final String name = displayName.toLowerCase();
+            final int length = name.length();
+            for (int i = 0; i < length; i++) {
+                if ((i == 0 || !Character.isLetterOrDigit(name.charAt(i - 1)))
+                        && name.startsWith(prefix, i)) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -228,8 +359,10 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
             }
 
             final FilterResults results = new FilterResults();
-            Cursor defaultDirectoryCursor = null;
-            Cursor directoryCursor = null;
+
+            // Queries and narrowed results issued for older constraints are dropped once this
+            // generation is current.
+            final int generation = mQueryScheduler.onFilterStarted();
 
             if (TextUtils.isEmpty(constraint)) {
                 clearTempEntries();
@@ -237,73 +370,93 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
                 return results;
             }
 
-            try {
-                defaultDirectoryCursor = doQuery(constraint, mPreferredMaxResultCount,
-                        null /* directoryId */);
+            if (mIncrementalFilteringEnabled) {
+                publishNarrowedResults(constraint, generation);
+            }
 
-                // Allow to load additional suggested entries
-                Set<SuggestionEntry> suggestedEntries = loadSuggestedEntries(constraint,
-                        mPreferredMaxResultCount);
+            // Give the user a chance to type the next character before hitting the provider.
+            if (!mQueryScheduler.awaitDebounce(generation)) {
+                results.values = SUPERSEDED_RESULT;
+                return results;
+            }
 
-                if (defaultDirectoryCursor == null &&
-                        (suggestedEntries == null || suggestedEntries.size() == 0)) {
-                    if (DEBUG) {
-                        Log.w(TAG, "null cursor returned for default Email filter query.");
-                    }
-                } else {
-                    // These variables will become mEntries, mEntryMap, mNonAggregatedEntries, and
-                    // mExistingDestinations. Here we shouldn't use those member variables directly
-                    // since this method is run outside the UI thread.
-                    final LinkedHashMap<Long, List<RecipientEntry>> entryMap =
-                            new LinkedHashMap<Long, List<RecipientEntry>>();
-                    final List<RecipientEntry> nonAggregatedEntries =
-                            new ArrayList<RecipientEntry>();
-                    final Set<String> existingDestinations = new HashSet<String>();
-
-                    if (suggestedEntries != null) {
-                        for (TemporaryEntry suggestedEntry : suggestedEntries) {
-                            putOneEntry(suggestedEntry, true, entryMap,
-                                    nonAggregatedEntries, existingDestinations);
-                        }
+            // Answer the default directory from memory if the local index is available.
+            List<TemporaryEntry> defaultDirectoryEntries = mLocalContactsIndexEnabled
+                    ? LocalContactsIndex.getInstance(mContext, mQueryMode).query(
+                            constraint, mPreferredMaxResultCount + ALLOWANCE_FOR_DUPLICATES)
+                    : null;
+            if (defaultDirectoryEntries == null) {
+                defaultDirectoryEntries = queryEntries(constraint, mPreferredMaxResultCount,
+                        null /* directoryId */, generation, null);
+            }
+            if (!mQueryScheduler.isCurrent(generation)) {
+                results.values = SUPERSEDED_RESULT;
+                return results;
+            }
+
+            // Allow to load additional suggested entries
+            Set<SuggestionEntry> suggestedEntries = loadSuggestedEntries(constraint,
+                    mPreferredMaxResultCount);
+
+            if (defaultDirectoryEntries == null &&
+                    (suggestedEntries == null || suggestedEntries.size() == 0)) {
+                if (DEBUG) {
+                    Log.w(TAG, "null cursor returned for default Email filter query.");
+                }
+            } else {
+                // These variables will become mEntries, mEntryMap, mNonAggregatedEntries, and
+                // mExistingDestinations. Here we shouldn't use those member variables directly
+                // since this method is run outside the UI thread.
+                final LinkedHashMap<Long, List<RecipientEntry>> entryMap =
+                        new LinkedHashMap<Long, List<RecipientEntry>>();
+                final List<RecipientEntry> nonAggregatedEntries =
+                        new ArrayList<RecipientEntry>();
+                final Set<String> existingDestinations = new HashSet<String>();
+
+                if (suggestedEntries != null) {
+                    for (TemporaryEntry suggestedEntry : suggestedEntries) {
+                        putOneEntry(suggestedEntry, true, entryMap,
+                                nonAggregatedEntries, existingDestinations);
                     }
+                }
 
-                    if (defaultDirectoryCursor != null) {
-                        while (defaultDirectoryCursor.moveToNext()) {
-                            // Note: At this point each entry doesn't contain any photo
-                            // (thus getPhotoBytes() returns null).
-                            putOneEntry(new TemporaryEntry(defaultDirectoryCursor,
-                                    null /* directoryId */),
-                                    true, entryMap, nonAggregatedEntries, existingDestinations);
-                        }
+                if (defaultDirectoryEntries != null) {
+                    // Note: At this point each entry doesn't contain any photo
+                    // (thus getPhotoBytes() returns null).
+                    for (TemporaryEntry defaultDirectoryEntry : defaultDirectoryEntries) {
+                        putOneEntry(defaultDirectoryEntry, true, entryMap,
+                                nonAggregatedEntries, existingDestinations);
                     }
+                }
 
-                    // We'll copy this result to mEntry in publicResults() (run in the UX thread).
-                    final List<RecipientEntry> entries = constructEntryList(
-                            entryMap, nonAggregatedEntries);
+                // We'll copy this result to mEntry in publicResults() (run in the UX thread).
+                final List<RecipientEntry> entries = constructEntryList(
+                        entryMap, nonAggregatedEntries);
 
-                    final List<DirectorySearchParams> paramsList =
-                            searchOtherDirectories(existingDestinations);
+                final List<DirectorySearchParams> paramsList =
+                        searchOtherDirectories(existingDestinations);
 
-                    results.values = new DefaultFilterResult(
-                            entries, entryMap, nonAggregatedEntries,
-                            existingDestinations, paramsList);
-                    results.count = 1;
-                }
-            } finally {
-                if (defaultDirectoryCursor != null) {
-                    defaultDirectoryCursor.close();
-                }
-                if (directoryCursor != null) {
-                    directoryCursor.close();
-                }
+                results.values = new DefaultFilterResult(
+                        entries, entryMap, nonAggregatedEntries,
+                        existingDestinations, paramsList, generation);
+                results.count = 1;
             }
             return results;
         }
 
         @Override
         protected void publishResults(final CharSequence constraint, FilterResults results) {
+            if (results.values == SUPERSEDED_RESULT) {
+                // Results for the newer constraint will follow; leave the drop down as it is.
+                results.count = getCount() > 0 ? 1 : 0;
+                return;
+            }
             mCurrentConstraint = constraint;
 
+            // The entries on screen are replaced now, so their photos are no longer needed.
+            // Those of the new entries are requested as they are bound.
+            cancelPhotoRequests();
+
             clearTempEntries();
 
             if (results.values != null) {
@@ -320,15 +473,18 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
                 }
 
                 updateEntries(defaultFilterResult.entries);
+                updateFilterSnapshot();
 
                 // We need to search other remote directories, doing other Filter requests.
                 if (defaultFilterResult.paramsList != null) {
                     final int limit = mPreferredMaxResultCount -
                             defaultFilterResult.existingDestinations.size();
+                    mDirectoryGeneration = defaultFilterResult.generation;
                     startSearchOtherDirectories(constraint, defaultFilterResult.paramsList, limit);
                 }
             } else {
                 updateEntries(Collections.<RecipientEntry>emptyList());
+                mFilterSnapshot = null;
             }
         }
 
@@ -355,10 +511,9 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
                         + existingDestinations.size()
                         + ", remaining limit: " + limit + ") ");
             }
-            final Cursor directoryCursor = mContentResolver.query(
-                    DirectoryListQuery.URI, DirectoryListQuery.PROJECTION,
-                    null, null, null);
-            return setupOtherDirectories(mContext, directoryCursor, mAccount);
+            // The directory list rarely changes, so it is cached across queries and only
+            // reloaded when the provider reports a change.
+            return DirectoryListCache.getInstance(mContext).getDirectories(mAccount);
         } else {
             // We don't need to search other directories.
             return null;
@@ -366,11 +521,15 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
     }
 
     /**
-     * An asynchronous filter that performs search in a particular directory.
+     * An asynchronous filter that performs search in a particular directory. Searches of all
+     * directories and adapters run on the shared, bounded thread pool of
+     * {@link DirectorySearchEngine} through {@link #search(CharSequence)} instead of each
+     * spinning up a {@link Filter} thread.
      */
     protected class DirectoryFilter extends Filter {
         private final DirectorySearchParams mParams;
         private int mLimit;
+        private int mGeneration;
 
         public DirectoryFilter(DirectorySearchParams params) {
             mParams = params;
@@ -384,8 +543,63 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
             return this.mLimit;
         }
 
+        /**
+         * Sets the query generation the next search belongs to. The search is cancelled once
+         * the constraint changes.
+         */
+        public synchronized void setGeneration(int generation) {
+            this.mGeneration = generation;
+        }
+
+        public synchronized int getGeneration() {
+            return this.mGeneration;
+        }
+
+        /**
+         * Starts searching this directory for the given constraint with the current limit on
+         * {@link DirectorySearchEngine}. Results are passed to {@link #publishResults} on the UI
+         * thread; if the directory does not answer within
+         * {@link #getDirectorySearchTimeoutMillis()}, the search is cancelled and empty results
+         * are published instead.
+         *
+         * {@link #filter(CharSequence)} still works, but runs on the thread of the filter.
+         */
+        public void search(final CharSequence constraint) {
+            final int limit = getLimit();
+            final int generation = getGeneration();
+            DirectorySearchEngine.execute(new DirectorySearchEngine.Task<FilterResults>(
+                    DirectorySearchEngine.PRIORITY_INTERACTIVE) {
+                @Override
+                protected FilterResults doInBackground() {
+                    return performFiltering(constraint, limit, generation,
+                            getCancellationSignal());
+                }
+
+                @Override
+                protected void onResult(FilterResults results) {
+                    if (results == null) {
+                        if (DEBUG) {
+                            Log.d(TAG, "Directory search timed out. directoryId: "
+                                    + mParams.directoryId + ", constraint: " + constraint);
+                        }
+                        results = new FilterResults();
+                    }
+                    publishResults(constraint, results);
+                }
+            }, mDirectorySearchTimeoutMillis);
+        }
+
         @Override
         protected FilterResults performFiltering(CharSequence constraint) {
+            return performFiltering(constraint, getLimit(), getGeneration(), null);
+        }
+
+        /**
+         * Queries this directory, cancelling the query through the optional signal. Runs on a
+         * {@link DirectorySearchEngine} thread when started by {@link #search(CharSequence)}.
+         */
+        protected FilterResults performFiltering(CharSequence constraint, int limit,
+                int generation, CancellationSignal cancellationSignal) {
             if (DEBUG) {
                 Log.d(TAG, "DirectoryFilter#performFiltering. directoryId: " + mParams.directoryId
                         + ", constraint: " + constraint + ", thread: " + Thread.currentThread());
@@ -395,27 +609,10 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
             results.count = 0;
 
             if (!TextUtils.isEmpty(constraint)) {
-                final ArrayList<TemporaryEntry> tempEntries = new ArrayList<TemporaryEntry>();
-
-                Cursor cursor = null;
-                try {
-                    // We don't want to pass this Cursor object to UI thread (b/5017608).
-                    // Assuming the result should contain fairly small results (at most ~10),
-                    // We just copy everything to local structure.
-                    cursor = doQuery(constraint, getLimit(), mParams.directoryId);
-
-                    if (cursor != null) {
-                        while (cursor.moveToNext()) {
-                            tempEntries.add(new TemporaryEntry(cursor, mParams.directoryId));
-                        }
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-                if (!tempEntries.isEmpty()) {
-                    results.values = tempEntries;
+                final List<TemporaryEntry> entries = queryEntries(constraint, limit,
+                        mParams.directoryId, generation, cancellationSignal);
+                if (entries != null && !entries.isEmpty()) {
+                    results.values = new ArrayList<TemporaryEntry>(entries);
                     results.count = 1;
                 }
             }
@@ -448,6 +645,7 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
                     for (TemporaryEntry tempEntry : tempEntries) {
                         putOneEntry(tempEntry, mParams.directoryId == Directory.DEFAULT);
                     }
+                    updateFilterSnapshot();
                 }
 
                 // If there are remaining directories, set up delayed message again.
@@ -570,6 +768,30 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
      */
     private PhotoManager mPhotoManager;
 
+    private volatile boolean mIncrementalFilteringEnabled;
+
+    private volatile boolean mLocalContactsIndexEnabled;
+
+    private volatile boolean mResultCacheEnabled;
+
+    private volatile boolean mPersistentLookupCacheEnabled;
+
+    /**
+     * The results currently shown, kept for narrowing when incremental filtering is enabled.
+     * Replaced on the UI thread and read from the filter thread.
+     */
+    private volatile FilterSnapshot mFilterSnapshot;
+
+    /** Debounces keystrokes and cancels queries for superseded constraints. */
+    private final QueryScheduler mQueryScheduler = new QueryScheduler();
+
+    /** The query generation of the results whose directory searches were started last. */
+    private int mDirectoryGeneration;
+
+    private long mDirectorySearchTimeoutMillis = DEFAULT_DIRECTORY_SEARCH_TIMEOUT_MILLIS;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Handler specific for maintaining "Waiting for more contacts" message, which will be shown
      * when:
@@ -621,7 +843,7 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
         mContext = context;
         mContentResolver = context.getContentResolver();
         mPreferredMaxResultCount = preferredMaxResultCount;
-        mPhotoManager = new DefaultPhotoManager(mContentResolver);
+        mPhotoManager = new DefaultPhotoManager(context, false /* useDiskCache */);
         mQueryType = queryMode;
 
         if (queryMode == QUERY_TYPE_EMAIL) {
@@ -673,6 +895,127 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
         return mPhotoManager;
     }
 
+    /**
+     * If enabled, a constraint that extends the previous one (e.g. "john" after "joh") is first
+     * answered by narrowing the results already shown, which are published immediately. The
+     * provider query still runs and its results replace the narrowed ones once available.
+     * Disabled by default.
+     */
+    public void setIncrementalFilteringEnabled(boolean enabled) {
+        mIncrementalFilteringEnabled = enabled;
+        if (!enabled) {
+            mFilterSnapshot = null;
+        }
+    }
+
+    public boolean isIncrementalFilteringEnabled() {
+        return mIncrementalFilteringEnabled;
+    }
+
+    /**
+     * If enabled, the default directory is searched in an in-memory index of the local
+     * contacts instead of through the contacts provider. The index is shared by all adapters
+     * of the same query type, built in the background on first use and kept up to date as
+     * contacts change; until it is ready, the provider is queried as usual. Remote directories
+     * are always queried through the provider. Disabled by default.
+     */
+    public void setLocalContactsIndexEnabled(boolean enabled) {
+        mLocalContactsIndexEnabled = enabled;
+        if (enabled) {
+            // Start building the index now rather than on the first keystroke.
+            LocalContactsIndex.getInstance(mContext, mQueryMode);
+        }
+    }
+
+    public boolean isLocalContactsIndexEnabled() {
+        return mLocalContactsIndexEnabled;
+    }
+
+    /**
+     * If enabled, autocomplete results for the default and remote directories are cached
+     * process-wide per query type, account, directory and constraint, so that e.g. backspacing
+     * and retyping a prefix does not query the directories again. Cached results are served
+     * for a while and then refreshed in the background, identical concurrent queries from any
+     * adapter are merged into one, and local results are dropped whenever the contacts change.
+     * Disabled by default.
+     */
+    public void setResultCacheEnabled(boolean enabled) {
+        mResultCacheEnabled = enabled;
+    }
+
+    public boolean isResultCacheEnabled() {
+        return mResultCacheEnabled;
+    }
+
+    /**
+     * If enabled, recipients resolved by {@link #getMatchingRecipients(ArrayList,
+     * RecipientAlternatesAdapter.RecipientMatchCallback)} are remembered on disk. Later lookups
+     * of the same addresses, e.g. when a draft is reopened, report the remembered entries first
+     * and then revalidate them against the contacts provider and directories. Disabled by
+     * default. Disabling it deletes the remembered recipients.
+     */
+    public void setPersistentLookupCacheEnabled(boolean enabled) {
+        mPersistentLookupCacheEnabled = enabled;
+        if (!enabled) {
+            final RecipientLookupCache cache = RecipientLookupCache.getInstance(mContext);
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    cache.clear();
+                }
+            });
+        }
+    }
+
+    public boolean isPersistentLookupCacheEnabled() {
+        return mPersistentLookupCacheEnabled;
+    }
+
+    /**
+     * Sets how long a constraint must stay unchanged before the contacts provider is queried
+     * for it, in milliseconds. 0, the default, queries immediately and
+     * {@link #QUERY_DEBOUNCE_ADAPTIVE} derives the window from the user's typing speed.
+     * Debouncing relies on {@link #notifyConstraintChanged()} being called for every change.
+     */
+    public void setQueryDebounceMillis(int millis) {
+        mQueryScheduler.setDebounceMillis(millis);
+    }
+
+    public int getQueryDebounceMillis() {
+        return mQueryScheduler.getDebounceMillis();
+    }
+
+    /**
+     * Called on the UI thread whenever the text being filtered changes, before the new
+     * constraint is passed to the filter. Cancels all local and directory queries still
+     * running for older constraints. {@link RecipientEditTextView} calls this automatically.
+     */
+    public void notifyConstraintChanged() {
+        mQueryScheduler.onConstraintChanged();
+    }
+
+    /**
+     * Sets how long a single remote directory may take to answer an autocomplete search before
+     * it is cancelled and treated as having no results. 0 disables the timeout.
+     */
+    public void setDirectorySearchTimeoutMillis(long timeoutMillis) {
+        mDirectorySearchTimeoutMillis = timeoutMillis;
+    }
+
+    public long getDirectorySearchTimeoutMillis() {
+        return mDirectorySearchTimeoutMillis;
+    }
+
+    /** Returns the number of provider queries cancelled because the constraint changed. */
+    public int getCancelledQueryCount() {
+        return mQueryScheduler.getCancelledCount();
+    }
+
+    /** Returns the number of provider queries that ran to completion. */
+    public int getCompletedQueryCount() {
+        return mQueryScheduler.getCompletedCount();
+    }
+
     /**
      * If true, forces using the {@link com.android.ex.chips.SingleRecipientArrayAdapter}
      * instead of {@link com.android.ex.chips.RecipientAlternatesAdapter} when
@@ -728,9 +1071,18 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
 
     public static List<DirectorySearchParams> setupOtherDirectories(Context context,
             Cursor directoryCursor, Account account) {
+        return orderDirectoriesForAccount(loadDirectories(context, directoryCursor), account);
+    }
+
+    /**
+     * Reads every row of the given directory cursor into a {@link DirectorySearchParams},
+     * resolving the directory type label from the provider's package. The list is returned in
+     * cursor order.
+     */
+    static List<DirectorySearchParams> loadDirectories(Context context,
+            Cursor directoryCursor) {
         final PackageManager packageManager = context.getPackageManager();
         final List<DirectorySearchParams> paramsList = new ArrayList<DirectorySearchParams>();
-        DirectorySearchParams preferredDirectory = null;
         while (directoryCursor.moveToNext()) {
             final long id = directoryCursor.getLong(DirectoryListQuery.ID);
 
@@ -761,27 +1113,40 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
                             + resourceId + "@" + packageName, e);
                 }
             }
+            paramsList.add(params);
+        }
+        return paramsList;
+    }
 
-            // If an account has been provided and we found a directory that
-            // corresponds to that account, place that directory second, directly
-            // underneath the local contacts.
-            if (account != null && account.name.equals(params.accountName) &&
+    /**
+     * If an account has been provided and there is a directory that corresponds to that
+     * account, moves that directory second, directly underneath the local contacts. The given
+     * list is modified in place and returned.
+     */
+    static List<DirectorySearchParams> orderDirectoriesForAccount(
+            List<DirectorySearchParams> paramsList, Account account) {
+        if (account == null) {
+            return paramsList;
+        }
+        DirectorySearchParams preferredDirectory = null;
+        for (int i = 0; i < paramsList.size(); i++) {
+            final DirectorySearchParams params = paramsList.get(i);
+            if (account.name.equals(params.accountName) &&
                     account.type.equals(params.accountType)) {
-                preferredDirectory = params;
-            } else {
-                paramsList.add(params);
+                preferredDirectory = paramsList.remove(i);
+                break;
             }
         }
 
         if (preferredDirectory != null) {
-            paramsList.add(1, preferredDirectory);
+            paramsList.add(Math.min(1, paramsList.size()), preferredDirectory);
         }
 
         return paramsList;
     }
 
     /**
-     * Starts search in other directories using {@link Filter}. Results will be handled in
+     * Starts search in other directories using {@link DirectoryFilter}. Results will be handled in
      * {@link DirectoryFilter}.
      */
     protected void startSearchOtherDirectories(
@@ -795,7 +1160,8 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
                 params.filter = new DirectoryFilter(params);
             }
             params.filter.setLimit(limit);
-            params.filter.filter(constraint);
+            params.filter.setGeneration(mDirectoryGeneration);
+            params.filter.search(constraint);
         }
 
         // Directory search started. We may show "waiting" message if directory results are slow
@@ -883,7 +1249,7 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
             for (int i = 0; i < size; i++) {
                 RecipientEntry entry = entryList.get(i);
                 entries.add(entry);
-                mPhotoManager.populatePhotoBytesAsync(entry, this);
+                requestPhoto(entry, this, DefaultPhotoManager.PRIORITY_PREFETCH);
                 if (entry.getDestinationType() != SUGGESTED_ENTRY_DESTINATION_TYPE) {
                     // Will trim array later
                     validEntryCount++;
@@ -899,7 +1265,7 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
                     break;
                 }
                 entries.add(entry);
-                mPhotoManager.populatePhotoBytesAsync(entry, this);
+                requestPhoto(entry, this, DefaultPhotoManager.PRIORITY_PREFETCH);
                 validEntryCount++;
             }
         }
@@ -928,6 +1294,50 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
     }
 
 
+    /**
+     * Records the results currently shown so that the next constraint may narrow them. Must be
+     * called on the UI thread.
+     */
+    private void updateFilterSnapshot() {
+        if (!mIncrementalFilteringEnabled || mCurrentConstraint == null || mEntryMap == null) {
+            mFilterSnapshot = null;
+            return;
+        }
+        mFilterSnapshot = new FilterSnapshot(mCurrentConstraint, mEntryMap, mNonAggregatedEntries);
+    }
+
+    /**
+     * Narrows the last results to the given constraint and posts them to the UI thread, where
+     * they are shown unless the constraint has changed again in the meantime. Called from the
+     * filter thread before the provider is queried.
+     */
+    private void publishNarrowedResults(final CharSequence constraint, final int generation) {
+        final FilterSnapshot snapshot = mFilterSnapshot;
+        if (snapshot == null || !snapshot.canNarrowTo(constraint)) {
+            return;
+        }
+        final FilterSnapshot narrowed = snapshot.narrow(constraint);
+        if (DEBUG) {
+            Log.d(TAG, "Narrowed results from \"" + snapshot.constraint + "\" to \""
+                    + constraint + "\"");
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mQueryScheduler.isCurrent(generation)) {
+                    return;
+                }
+                mCurrentConstraint = constraint;
+                clearTempEntries();
+                mEntryMap = narrowed.getEntryMap();
+                mNonAggregatedEntries = narrowed.getNonAggregatedEntries();
+                mExistingDestinations = narrowed.getExistingDestinations();
+                mFilterSnapshot = narrowed;
+                updateEntries(constructEntryList());
+            }
+        });
+    }
+
     public interface EntriesUpdatedObserver {
         public void onChanged(List<RecipientEntry> entries);
     }
@@ -956,10 +1366,90 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
     }
 
     protected void fetchPhoto(final RecipientEntry entry, PhotoManager.PhotoManagerCallback cb) {
-        mPhotoManager.populatePhotoBytesAsync(entry, cb);
+        requestPhoto(entry, cb, DefaultPhotoManager.PRIORITY_CHIP);
     }
 
-    private Cursor doQuery(CharSequence constraint, int limit, Long directoryId) {
+    private void requestPhoto(RecipientEntry entry, PhotoManager.PhotoManagerCallback cb,
+            int priority) {
+        if (mPhotoManager instanceof DefaultPhotoManager) {
+            ((DefaultPhotoManager) mPhotoManager).populatePhotoBytesAsync(entry, cb, priority);
+        } else {
+            mPhotoManager.populatePhotoBytesAsync(entry, cb);
+        }
+    }
+
+    /**
+     * Withdraws the photo requests made for the dropdown, e.g. because it was dismissed.
+     * Requests for chips are not affected.
+     */
+    public void cancelPhotoRequests() {
+        if (mPhotoManager instanceof DefaultPhotoManager) {
+            ((DefaultPhotoManager) mPhotoManager).cancelRequests(this);
+        }
+    }
+
+    /**
+     * Returns the entries matching the given constraint, from the result cache if enabled or
+     * from the provider. Returns null if the query failed or was cancelled, either because the
+     * given generation was superseded or through the optional {@code cancellationSignal}.
+     */
+    private List<TemporaryEntry> queryEntries(final CharSequence constraint, int limit,
+            final Long directoryId, int generation, CancellationSignal cancellationSignal) {
+        final CancellationSignal signal = mQueryScheduler.acquire(generation);
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    signal.cancel();
+                }
+            });
+        }
+        try {
+            if (!mResultCacheEnabled) {
+                return loadEntries(constraint, limit, directoryId, mAccount, signal);
+            }
+            final Account account = mAccount;
+            return QueryResultCache.getInstance(mContext).get(
+                    new QueryResultCache.Key(mQueryMode, account, directoryId, constraint),
+                    limit, signal, new QueryResultCache.Loader() {
+                        @Override
+                        public List<TemporaryEntry> load(int limit, CancellationSignal signal) {
+                            return loadEntries(constraint, limit, directoryId, account, signal);
+                        }
+                    });
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+            mQueryScheduler.release(signal);
+        }
+    }
+
+    /**
+     * Queries the provider and copies the results; we don't want to pass the Cursor object to
+     * the UI thread (b/5017608). Assuming the result should contain fairly small results (at
+     * most ~10), we just copy everything to local structure. Returns null if the query failed
+     * or was cancelled.
+     */
+    private List<TemporaryEntry> loadEntries(CharSequence constraint, int limit,
+            Long directoryId, Account account, CancellationSignal signal) {
+        final Cursor cursor = doQuery(constraint, limit, directoryId, account, signal);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final List<TemporaryEntry> entries = new ArrayList<TemporaryEntry>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                entries.add(new TemporaryEntry(cursor, directoryId));
+            }
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor doQuery(CharSequence constraint, int limit, Long directoryId,
+            Account account, CancellationSignal signal) {
         final Uri.Builder builder = mQueryMode.getContentFilterUri().buildUpon()
                 .appendPath(constraint.toString())
                 .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY,
@@ -968,13 +1458,22 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
             builder.appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY,
                     String.valueOf(directoryId));
         }
-        if (mAccount != null) {
-            builder.appendQueryParameter(PRIMARY_ACCOUNT_NAME, mAccount.name);
-            builder.appendQueryParameter(PRIMARY_ACCOUNT_TYPE, mAccount.type);
+        if (account != null) {
+            builder.appendQueryParameter(PRIMARY_ACCOUNT_NAME, account.name);
+            builder.appendQueryParameter(PRIMARY_ACCOUNT_TYPE, account.type);
         }
         final long start = System.currentTimeMillis();
-        final Cursor cursor = mContentResolver.query(
-                builder.build(), mQueryMode.getProjection(), null, null, null);
+        Cursor cursor;
+        try {
+            cursor = mContentResolver.query(
+                    builder.build(), mQueryMode.getProjection(), null, null, null, signal);
+        } catch (OperationCanceledException e) {
+            if (DEBUG) {
+                Log.d(TAG, "Query cancelled (query: " + constraint
+                        + ", directoryId: " + directoryId + ")");
+            }
+            cursor = null;
+        }
         final long end = System.currentTimeMillis();
         if (DEBUG) {
             Log.d(TAG, "Time for autocomplete (query: " + constraint
@@ -1043,6 +1542,10 @@ public class BaseRecipientAdapter extends BaseAdapter implements Filterable, Acc
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         final RecipientEntry entry = getEntries().get(position);
+        if (entry.getPhotoBytes() == null && mPhotoManager instanceof DefaultPhotoManager) {
+            // The row is on screen now; load its photo before those of rows that are not.
+            requestPhoto(entry, this, DefaultPhotoManager.PRIORITY_VISIBLE);
+        }
 
         final String constraint = mCurrentConstraint == null ? null :
                 mCurrentConstraint.toString();
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import com.android.ex.chips.recipientchip.DrawableRecipientChip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The chips of a text, kept sorted by position as chips are added and removed, so that the
+ * last chip is found in constant time and the chip at an offset in logarithmic time.
+ *
+ * The position of each chip is kept in the index, since before API 23
+ * {@link Spanned#getSpanStart} scans all spans of the text. When the text changes, the chips
+ * after the change are moved by its length and those touching it are read from the text
+ * again. Chips do not overlap, and editing the text never changes the order of spans that do
+ * not overlap, so the order only has to be maintained when a chip is added.
+ *
+ * Chips in text inserted by {@link Editable#replace} are only reported to span watchers after
+ * the text watchers ran, so the index also picks them up when the text changes, to be
+ * current when the text watchers of the view look at it.
+ *
+ * The index is updated as the text changes and is not synchronized; it must only be used on
+ * the thread that edits the text, i.e. the UI thread.
+ */
+class ChipSpanIndex implements SpanWatcher, TextWatcher, NoCopySpan {
+    /** Above the priority of the watcher of TextView, so that we are notified first. */
+    private static final int PRIORITY = 200;
+
+    /** A chip and its position in the text. */
+    private static final class Entry {
+        final DrawableRecipientChip chip;
+        int start;
+        int end;
+
+        Entry(DrawableRecipientChip chip, int start, int end) {
+            this.chip = chip;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final Spannable mText;
+    private final ArrayList<Entry> mChips;
+
+    private ChipSpanIndex(Spannable text) {
+        mText = text;
+        final DrawableRecipientChip[] chips =
+                text.getSpans(0, text.length(), DrawableRecipientChip.class);
+        mChips = new ArrayList<Entry>(chips.length + 10);
+        for (DrawableRecipientChip chip : chips) {
+            mChips.add(new Entry(chip, text.getSpanStart(chip), text.getSpanEnd(chip)));
+        }
+        Collections.sort(mChips, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry first, Entry second) {
+                return first.start < second.start ? -1 : (first.start == second.start ? 0 : 1);
+            }
+        });
+    }
+
+    /** Indexes the chips of the given text and keeps the index current while it changes. */
+    public static ChipSpanIndex attach(Spannable text) {
+        final ChipSpanIndex index = new ChipSpanIndex(text);
+        text.setSpan(index, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE
+                | (PRIORITY << Spanned.SPAN_PRIORITY_SHIFT));
+        return index;
+    }
+
+    public Spannable getText() {
+        return mText;
+    }
+
+    public int size() {
+        return mChips.size();
+    }
+
+    /** Returns the last chip of the text, or null if there is none. */
+    public DrawableRecipientChip getLast() {
+        final int size = mChips.size();
+        return size > 0 ? mChips.get(size - 1).chip : null;
+    }
+
+    /** Returns the chips of the text, sorted by position. */
+    public DrawableRecipientChip[] toArray() {
+        final int size = mChips.size();
+        final DrawableRecipientChip[] chips = new DrawableRecipientChip[size];
+        for (int i = 0; i < size; i++) {
+            chips[i] = mChips.get(i).chip;
+        }
+        return chips;
+    }
+
+    /** Returns the first chip that contains the given offset, boundaries included, or null. */
+    public DrawableRecipientChip find(int offset) {
+        final int i = firstEndingAtOrAfter(offset);
+        if (i < mChips.size()) {
+            final Entry entry = mChips.get(i);
+            if (entry.start <= offset) {
+                return entry.chip;
+            }
+        }
+        return null;
+    }
+
+    /** Adds the chips that intersect the given range, boundaries included, to the list. */
+    public void collect(int start, int end, List<DrawableRecipientChip> out) {
+        final int size = mChips.size();
+        for (int i = firstEndingAtOrAfter(start); i < size; i++) {
+            final Entry entry = mChips.get(i);
+            if (entry.start > end) {
+                return;
+            }
+            out.add(entry.chip);
+        }
+    }
+
+    /**
+     * Returns whether a chip intersects the given range, by the same rules as
+     * {@link Spanned#getSpans}.
+     */
+    public boolean intersects(int start, int end) {
+        final int size = mChips.size();
+        for (int i = firstEndingAtOrAfter(start); i < size; i++) {
+            final Entry entry = mChips.get(i);
+            final int chipStart = entry.start;
+            if (chipStart > end) {
+                return false;
+            }
+            final int chipEnd = entry.end;
+            if (chipStart != chipEnd && start != end && (chipStart == end || chipEnd == start)) {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (what instanceof DrawableRecipientChip) {
+            add((DrawableRecipientChip) what, start, end);
+        }
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        if (what instanceof DrawableRecipientChip) {
+            remove((DrawableRecipientChip) what, start);
+        }
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart,
+            int nend) {
+        if (!(what instanceof DrawableRecipientChip)) {
+            return;
+        }
+        // Usually the chip only moved with the text around it, which onTextChanged() already
+        // accounted for; otherwise it was set somewhere else.
+        final int i = firstStartingAtOrAfter(nstart);
+        if (i < mChips.size() && mChips.get(i).chip == what) {
+            mChips.get(i).end = nend;
+            return;
+        }
+        final DrawableRecipientChip chip = (DrawableRecipientChip) what;
+        remove(chip, ostart);
+        add(chip, nstart, nend);
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (before == 0 && count == 0) {
+            return;
+        }
+        // Move the chips after the change. Those touching it may have grown, shrunk or been
+        // removed depending on their flags, so they are read from the text again.
+        final int delta = count - before;
+        final int changeEnd = start + before;
+        for (int i = firstEndingAtOrAfter(start); i < mChips.size(); i++) {
+            final Entry entry = mChips.get(i);
+            if (entry.start > changeEnd) {
+                entry.start += delta;
+                entry.end += delta;
+            } else {
+                entry.start = mText.getSpanStart(entry.chip);
+                entry.end = mText.getSpanEnd(entry.chip);
+                if (entry.start < 0) {
+                    mChips.remove(i--);
+                }
+            }
+        }
+
+        if (count == 0) {
+            return;
+        }
+        final DrawableRecipientChip[] inserted =
+                mText.getSpans(start, start + count, DrawableRecipientChip.class);
+        for (DrawableRecipientChip chip : inserted) {
+            add(chip, mText.getSpanStart(chip), mText.getSpanEnd(chip));
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    private void add(DrawableRecipientChip chip, int start, int end) {
+        final int i = firstStartingAtOrAfter(start);
+        if (i < mChips.size() && mChips.get(i).chip == chip) {
+            return;
+        }
+        mChips.add(i, new Entry(chip, start, end));
+    }
+
+    private void remove(DrawableRecipientChip chip, int start) {
+        // The text may be in the middle of an edit, so fall back to a scan if the positions
+        // of the other chips do not lead to this one.
+        final int i = firstStartingAtOrAfter(start);
+        if (i < mChips.size() && mChips.get(i).chip == chip) {
+            mChips.remove(i);
+            return;
+        }
+        for (int j = mChips.size() - 1; j >= 0; j--) {
+            if (mChips.get(j).chip == chip) {
+                mChips.remove(j);
+                return;
+            }
+        }
+    }
+
+    /** Returns the index of the first chip starting at or after the offset. */
+    private int firstStartingAtOrAfter(int offset) {
+        int low = 0;
+        int high = mChips.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mChips.get(mid).start < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Returns the index of the first chip ending at or after the offset. */
+    private int firstEndingAtOrAfter(int offset) {
+        int low = 0;
+        int high = mChips.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mChips.get(mid).end < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
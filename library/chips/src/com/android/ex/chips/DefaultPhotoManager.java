@@ -17,21 +17,50 @@
 package com.android.ex.chips;
 
 import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Default implementation of {@link com.android.ex.chips.PhotoManager} that
  * queries for photo bytes by using the {@link com.android.ex.chips.RecipientEntry}'s
  * photoThumbnailUri.
+ *
+ * Photos are cached in up to three tiers: encoded photo bytes and decoded bitmaps in memory,
+ * each bounded by a byte budget rather than a number of photos, and optionally the encoded
+ * photos of remote directory contacts in an app-private directory on disk.
  */
 public class DefaultPhotoManager implements PhotoManager {
     private static final String TAG = "DefaultPhotoManager";
@@ -39,11 +68,14 @@ public class DefaultPhotoManager implements PhotoManager {
     private static final boolean DEBUG = false;
 
     /**
-     * For reading photos for directory contacts, this is the chunk size for
-     * copying from the {@link InputStream} to the output stream.
+     * For reading photos for directory contacts of unknown length, this is the
+     * initial size of the buffer read into.
      */
     private static final int BUFFER_SIZE = 1024*16;
 
+    /** Photos larger than this are not loaded. */
+    private static final int MAX_PHOTO_BYTES = 1024 * 1024;
+
     private static class PhotoQuery {
         public static final String[] PROJECTION = {
             ContactsContract.CommonDataKinds.Photo.PHOTO
@@ -52,94 +84,593 @@ public class DefaultPhotoManager implements PhotoManager {
         public static final int PHOTO = 0;
     }
 
+    /** Memory budget for encoded photo bytes. */
+    private static final int PHOTO_BYTES_CACHE_BYTES = 1024 * 1024;
+
+    /** Upper bound for the memory budget of decoded bitmaps. */
+    private static final int MAX_BITMAP_CACHE_BYTES = 4 * 1024 * 1024;
+
+    /** Disk budget for the photos of remote directory contacts. */
+    private static final long DISK_CACHE_BYTES = 5 * 1024 * 1024;
+
+    private static final String DISK_CACHE_DIRECTORY = "chips_photos";
+
+    private static final int MAX_FAILED_URIS = 100;
+
+    /**
+     * How long a photo that could not be loaded is not requested again. Loads of remote photos
+     * may fail for a while only, e.g. while offline.
+     */
+    private static final long FAILED_URI_EXPIRY_MILLIS = 5 * 60 * 1000;
+
+    /** The size to decode photos for if no resources are available, in dips. */
+    private static final int DEFAULT_PHOTO_SIZE_DIP = 40;
+
+    /** Photos of rows currently shown in a dropdown. */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Photos of chips in a recipient field. */
+    public static final int PRIORITY_CHIP = 1;
+    /** Photos of results that may be shown later. */
+    public static final int PRIORITY_PREFETCH = 2;
+
+    private static final int POOL_SIZE = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    /**
+     * Loads photos for all photo managers of the process, several at a time so that one slow
+     * remote directory photo does not hold up the others.
+     */
+    private static final ThreadPoolExecutor sExecutor;
+    static {
+        sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "PhotoLoader #" + mCount.incrementAndGet());
+                    }
+                });
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     private final ContentResolver mContentResolver;
     private final LruCache<Uri, byte[]> mPhotoCacheMap;
+    private final LruCache<Uri, Bitmap> mBitmapCache;
+    /** Null if photos are not cached on disk. */
+    private final File mDiskCacheDirectory;
+    /** The size photos are decoded for, in pixels. */
+    private final int mPhotoSize;
+
+    /**
+     * Photos that could not be loaded, with the time they failed, which are not requested again
+     * until {@link #FAILED_URI_EXPIRY_MILLIS} later.
+     */
+    private final LruCache<Uri, Long> mFailedUris = new LruCache<Uri, Long>(MAX_FAILED_URIS);
+
+    /** Photos being loaded or waiting to be, by URI. Only accessed with the lock held. */
+    private final Map<Uri, PhotoRequest> mRequests = new HashMap<Uri, PhotoRequest>();
+
+    private final AtomicInteger mMemoryHitCount = new AtomicInteger();
+    private final AtomicInteger mDiskHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
 
     public DefaultPhotoManager(ContentResolver contentResolver) {
+        this(contentResolver, null, (int) (DEFAULT_PHOTO_SIZE_DIP
+                * Resources.getSystem().getDisplayMetrics().density));
+    }
+
+    /**
+     * @param useDiskCache whether to keep the photos of remote directory contacts in the
+     *     app's cache directory, so that they need not be downloaded again by later instances.
+     */
+    public DefaultPhotoManager(Context context, boolean useDiskCache) {
+        this(context.getContentResolver(), useDiskCache
+                ? new File(context.getCacheDir(), DISK_CACHE_DIRECTORY) : null,
+                context.getResources().getDimensionPixelSize(R.dimen.avatar_width_height));
+    }
+
+    private DefaultPhotoManager(ContentResolver contentResolver, File diskCacheDirectory,
+            int photoSize) {
         mContentResolver = contentResolver;
-        mPhotoCacheMap = new LruCache<Uri, byte[]>(PHOTO_CACHE_SIZE);
+        mDiskCacheDirectory = diskCacheDirectory;
+        mPhotoSize = photoSize;
+        mPhotoCacheMap = new LruCache<Uri, byte[]>(PHOTO_BYTES_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Uri key, byte[] value) {
+                return value.length;
+            }
+        };
+        final int bitmapCacheBytes =
+                (int) Math.min(Runtime.getRuntime().maxMemory() / 32, MAX_BITMAP_CACHE_BYTES);
+        mBitmapCache = new LruCache<Uri, Bitmap>(bitmapCacheBytes) {
+            @Override
+            protected int sizeOf(Uri key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
     }
 
     @Override
     public void populatePhotoBytesAsync(RecipientEntry entry, PhotoManagerCallback callback) {
+        populatePhotoBytesAsync(entry, callback, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Like {@link #populatePhotoBytesAsync(RecipientEntry, PhotoManagerCallback)}, with the
+     * priority to load the photo at if it is not cached: one of {@link #PRIORITY_VISIBLE},
+     * {@link #PRIORITY_CHIP} or {@link #PRIORITY_PREFETCH}. Requests for a photo that is
+     * already being loaded join that load.
+     */
+    public void populatePhotoBytesAsync(RecipientEntry entry, PhotoManagerCallback callback,
+            int priority) {
         final Uri photoThumbnailUri = entry.getPhotoThumbnailUri();
         if (photoThumbnailUri != null) {
             final byte[] photoBytes = mPhotoCacheMap.get(photoThumbnailUri);
-            if (photoBytes != null) {
+            final Bitmap photoBitmap = mBitmapCache.get(photoThumbnailUri);
+            if (photoBytes != null && photoBitmap != null) {
+                mMemoryHitCount.incrementAndGet();
                 entry.setPhotoBytes(photoBytes);
+                entry.setPhotoBitmap(photoBitmap);
                 if (callback != null) {
                     callback.onPhotoBytesPopulated();
                 }
+            } else if (hasFailedRecently(photoThumbnailUri)) {
+                // Don't retry on every bind of a row whose photo could not be loaded.
+                if (callback != null) {
+                    callback.onPhotoBytesAsyncLoadFailed();
+                }
             } else {
                 if (DEBUG) {
                     Log.d(TAG, "No photo cache for " + entry.getDisplayName()
                             + ". Fetch one asynchronously");
                 }
-                fetchPhotoAsync(entry, photoThumbnailUri, callback);
+                fetchPhotoAsync(entry, photoThumbnailUri, callback, priority);
             }
         } else if (callback != null) {
             callback.onPhotoBytesAsyncLoadFailed();
         }
     }
 
-    private void fetchPhotoAsync(final RecipientEntry entry, final Uri photoThumbnailUri,
-            final PhotoManagerCallback callback) {
-        final AsyncTask<Void, Void, byte[]> photoLoadTask = new AsyncTask<Void, Void, byte[]>() {
-            @Override
-            protected byte[] doInBackground(Void... params) {
-                // First try running a query. Images for local contacts are
-                // loaded by sending a query to the ContactsProvider.
-                final Cursor photoCursor = mContentResolver.query(
-                        photoThumbnailUri, PhotoQuery.PROJECTION, null, null, null);
-                if (photoCursor != null) {
-                    try {
-                        if (photoCursor.moveToFirst()) {
-                            return photoCursor.getBlob(PhotoQuery.PHOTO);
-                        }
-                    } finally {
-                        photoCursor.close();
-                    }
+    private boolean hasFailedRecently(Uri photoThumbnailUri) {
+        final Long failedTime = mFailedUris.get(photoThumbnailUri);
+        if (failedTime == null) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() - failedTime < FAILED_URI_EXPIRY_MILLIS) {
+            return true;
+        }
+        mFailedUris.remove(photoThumbnailUri);
+        return false;
+    }
+
+    /**
+     * Withdraws all requests made with the given callback, e.g. when the dropdown they were
+     * made for is dismissed or its results replaced. Loads nobody else is waiting for are
+     * dropped if they have not started yet.
+     */
+    public void cancelRequests(PhotoManagerCallback callback) {
+        synchronized (mRequests) {
+            final Iterator<PhotoRequest> iterator = mRequests.values().iterator();
+            while (iterator.hasNext()) {
+                final PhotoRequest request = iterator.next();
+                request.removeWaiters(callback);
+                if (request.mWaiters.isEmpty() && sExecutor.remove(request)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void fetchPhotoAsync(RecipientEntry entry, Uri photoThumbnailUri,
+            PhotoManagerCallback callback, int priority) {
+        synchronized (mRequests) {
+            PhotoRequest request = mRequests.get(photoThumbnailUri);
+            if (request == null) {
+                request = new PhotoRequest(photoThumbnailUri, priority);
+                mRequests.put(photoThumbnailUri, request);
+                request.mWaiters.add(new Waiter(entry, callback));
+                sExecutor.execute(request);
+            } else {
+                // Rebinding the same row must not add another waiter, or its callback would be
+                // notified once per bind.
+                if (!request.hasWaiter(entry, callback)) {
+                    request.mWaiters.add(new Waiter(entry, callback));
+                }
+                request.raisePriority(priority);
+            }
+        }
+    }
+
+    /** An entry and callback waiting for a photo. */
+    private static class Waiter {
+        public final RecipientEntry entry;
+        public final PhotoManagerCallback callback;
+
+        public Waiter(RecipientEntry entry, PhotoManagerCallback callback) {
+            this.entry = entry;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Loads one photo for everybody waiting for it. Fields are guarded by
+     * {@link #mRequests}.
+     */
+    private class PhotoRequest implements Runnable, Comparable<PhotoRequest> {
+        private final Uri mUri;
+        private final long mSequence = sSequence.getAndIncrement();
+        private final List<Waiter> mWaiters = new ArrayList<Waiter>();
+        private int mPriority;
+        private boolean mStarted;
+
+        public PhotoRequest(Uri uri, int priority) {
+            mUri = uri;
+            mPriority = priority;
+        }
+
+        public void raisePriority(int priority) {
+            // The queue orders requests as they are added; requeue to move one ahead.
+            if (priority < mPriority && !mStarted && sExecutor.remove(this)) {
+                mPriority = priority;
+                sExecutor.execute(this);
+            }
+        }
+
+        public boolean hasWaiter(RecipientEntry entry, PhotoManagerCallback callback) {
+            for (Waiter waiter : mWaiters) {
+                if (waiter.entry == entry && waiter.callback == callback) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void removeWaiters(PhotoManagerCallback callback) {
+            final Iterator<Waiter> iterator = mWaiters.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().callback == callback) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (mRequests) {
+                mStarted = true;
+            }
+            byte[] photoBytes = null;
+            Bitmap photoBitmap = null;
+            try {
+                photoBytes = loadPhotoBytes(mUri);
+                if (photoBytes != null) {
+                    photoBitmap = decodePhoto(photoBytes);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not load photo " + mUri, e);
+            } catch (OutOfMemoryError e) {
+                Log.w(TAG, "Could not decode photo " + mUri, e);
+            }
+            final byte[] bytesResult = photoBitmap != null ? photoBytes : null;
+            final Bitmap bitmapResult = photoBitmap;
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(bytesResult, bitmapResult);
+                }
+            });
+        }
+
+        private void deliver(byte[] photoBytes, Bitmap photoBitmap) {
+            final List<Waiter> waiters;
+            synchronized (mRequests) {
+                mRequests.remove(mUri);
+                waiters = new ArrayList<Waiter>(mWaiters);
+            }
+            if (photoBytes != null) {
+                mPhotoCacheMap.put(mUri, photoBytes);
+                mBitmapCache.put(mUri, photoBitmap);
+            } else {
+                mFailedUris.put(mUri, SystemClock.elapsedRealtime());
+            }
+            for (Waiter waiter : waiters) {
+                waiter.entry.setPhotoBytes(photoBytes);
+                waiter.entry.setPhotoBitmap(photoBitmap);
+                if (waiter.callback == null) {
+                    continue;
+                }
+                if (photoBytes != null) {
+                    waiter.callback.onPhotoBytesAsynchronouslyPopulated();
                 } else {
-                    // If the query fails, try streaming the URI directly.
-                    // For remote directory images, this URI resolves to the
-                    // directory provider and the images are loaded by sending
-                    // an openFile call to the provider.
-                    try {
-                        InputStream is = mContentResolver.openInputStream(
-                                photoThumbnailUri);
-                        if (is != null) {
-                            byte[] buffer = new byte[BUFFER_SIZE];
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            try {
-                                int size;
-                                while ((size = is.read(buffer)) != -1) {
-                                    baos.write(buffer, 0, size);
-                                }
-                            } finally {
-                                is.close();
-                            }
-                            return baos.toByteArray();
-                        }
-                    } catch (IOException ex) {
-                        // ignore
+                    waiter.callback.onPhotoBytesAsyncLoadFailed();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(PhotoRequest another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    /** Loads the photo bytes from memory, the disk cache or the photo's provider. */
+    private byte[] loadPhotoBytes(Uri photoThumbnailUri) {
+        // Only the decoded bitmap may have been evicted.
+        final byte[] memoryBytes = mPhotoCacheMap.get(photoThumbnailUri);
+        if (memoryBytes != null) {
+            mMemoryHitCount.incrementAndGet();
+            return memoryBytes;
+        }
+        final File diskCacheFile = getDiskCacheFile(photoThumbnailUri);
+        if (diskCacheFile != null) {
+            final byte[] cachedBytes = readDiskCache(diskCacheFile);
+            if (cachedBytes != null) {
+                mDiskHitCount.incrementAndGet();
+                return cachedBytes;
+            }
+        }
+        mMissCount.incrementAndGet();
+
+        // First try running a query. Images for local contacts are
+        // loaded by sending a query to the ContactsProvider.
+        final Cursor photoCursor = mContentResolver.query(
+                photoThumbnailUri, PhotoQuery.PROJECTION, null, null, null);
+        if (photoCursor != null) {
+            try {
+                if (photoCursor.moveToFirst()) {
+                    return photoCursor.getBlob(PhotoQuery.PHOTO);
+                }
+            } finally {
+                photoCursor.close();
+            }
+        } else {
+            // If the query fails, try streaming the URI directly.
+            // For remote directory images, this URI resolves to the
+            // directory provider and the images are loaded by sending
+            // an openFile call to the provider.
+            try {
+                final byte[] photoBytes = readPhotoStream(photoThumbnailUri);
+                if (photoBytes != null && isImage(photoBytes)) {
+                    if (diskCacheFile != null) {
+                        writeDiskCache(diskCacheFile, photoBytes);
                     }
+                    return photoBytes;
                 }
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the photo at the given URI. If the provider reports the photo's length, the bytes
+     * are read straight into an array of that size; otherwise they are read into a growing
+     * buffer, which is trimmed once at the end. Returns null if the photo is larger than
+     * {@link #MAX_PHOTO_BYTES}.
+     */
+    private byte[] readPhotoStream(Uri photoThumbnailUri) throws IOException {
+        final AssetFileDescriptor descriptor =
+                mContentResolver.openAssetFileDescriptor(photoThumbnailUri, "r");
+        if (descriptor == null) {
+            return null;
+        }
+        final long length = descriptor.getLength();
+        final InputStream is;
+        try {
+            is = descriptor.createInputStream();
+        } catch (IOException e) {
+            descriptor.close();
+            throw e;
+        }
+        try {
+            if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return readUnknownLength(is);
+            }
+            if (length > MAX_PHOTO_BYTES) {
+                Log.w(TAG, "Photo too large: " + photoThumbnailUri + ", " + length + " bytes");
                 return null;
             }
+            final byte[] bytes = new byte[(int) length];
+            return readFully(is, bytes) ? bytes : null;
+        } finally {
+            is.close();
+        }
+    }
 
-            @Override
-            protected void onPostExecute(final byte[] photoBytes) {
-                entry.setPhotoBytes(photoBytes);
-                if (photoBytes != null) {
-                    mPhotoCacheMap.put(photoThumbnailUri, photoBytes);
-                    if (callback != null) {
-                        callback.onPhotoBytesAsynchronouslyPopulated();
-                    }
-                } else if (callback != null) {
-                    callback.onPhotoBytesAsyncLoadFailed();
+    private static byte[] readUnknownLength(InputStream is) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count = 0;
+        int read;
+        while ((read = is.read(buffer, count, buffer.length - count)) != -1) {
+            count += read;
+            if (count == buffer.length) {
+                if (count >= MAX_PHOTO_BYTES) {
+                    Log.w(TAG, "Photo too large, over " + MAX_PHOTO_BYTES + " bytes");
+                    return null;
                 }
+                buffer = Arrays.copyOf(buffer, Math.min(count * 2, MAX_PHOTO_BYTES));
             }
-        };
-        photoLoadTask.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+        }
+        return count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+    }
+
+    /** Fills the array from the stream. Returns false if the stream ended first. */
+    private static boolean readFully(InputStream is, byte[] bytes) throws IOException {
+        int offset = 0;
+        int read;
+        while (offset < bytes.length
+                && (read = is.read(bytes, offset, bytes.length - offset)) != -1) {
+            offset += read;
+        }
+        return offset == bytes.length;
+    }
+
+    /**
+     * Whether the bytes are an image the platform can decode, checked by decoding only the
+     * header, so that nothing else is cached.
+     */
+    private static boolean isImage(byte[] photoBytes) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length, options);
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    /**
+     * Decodes the photo at the smallest size that still covers {@link #mPhotoSize} pixels:
+     * subsampled by a power of two while decoding, then scaled down the rest of the way
+     * through the decoder's density scaling. Returns null if the bytes are not an image.
+     */
+    private Bitmap decodePhoto(byte[] photoBytes) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        final int shortSide = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (mPhotoSize > 0 && shortSide / (sampleSize * 2) >= mPhotoSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final int sampledShortSide = shortSide / sampleSize;
+        if (mPhotoSize > 0 && sampledShortSide > mPhotoSize) {
+            options.inScaled = true;
+            options.inDensity = sampledShortSide;
+            options.inTargetDensity = mPhotoSize;
+        }
+        return BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length, options);
+    }
+
+    /** Number of photos served from memory. */
+    public int getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    /** Number of photos served from the disk cache. */
+    public int getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    /** Number of photos that had to be loaded from their provider. */
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /** Returns the disk cache file for the given photo, or null if there is no disk cache. */
+    private File getDiskCacheFile(Uri photoThumbnailUri) {
+        if (mDiskCacheDirectory == null) {
+            return null;
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    photoThumbnailUri.toString().getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDiskCacheDirectory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "Disk cache disabled", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Disk cache disabled", e);
+        }
+        return null;
+    }
+
+    private static byte[] readDiskCache(File file) {
+        final long length = file.length();
+        if (length <= 0 || length > MAX_PHOTO_BYTES) {
+            return null;
+        }
+        final byte[] bytes = new byte[(int) length];
+        try {
+            final InputStream is = new FileInputStream(file);
+            try {
+                if (!readFully(is, bytes)) {
+                    return null;
+                }
+            } finally {
+                is.close();
+            }
+            // Mark the file as recently used for trimming.
+            file.setLastModified(System.currentTimeMillis());
+            return bytes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeDiskCache(File file, byte[] photoBytes) {
+        if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) {
+            return;
+        }
+        // Write to a temporary file first so that readers never see a partial photo.
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            final FileOutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(photoBytes);
+            } finally {
+                os.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache photo on disk", e);
+            temp.delete();
+            return;
+        }
+        trimDiskCache();
+    }
+
+    /** Deletes the least recently used photos until the disk cache is within its budget. */
+    private void trimDiskCache() {
+        final File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                final long firstModified = first.lastModified();
+                final long secondModified = second.lastModified();
+                return firstModified < secondModified ? -1
+                        : (firstModified == secondModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > DISK_CACHE_BYTES; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
     }
 }
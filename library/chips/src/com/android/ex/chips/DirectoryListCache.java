@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.android.ex.chips.BaseRecipientAdapter.DirectoryListQuery;
+import com.android.ex.chips.BaseRecipientAdapter.DirectorySearchParams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide cache of the {@link android.provider.ContactsContract.Directory} list.
+ *
+ * Resolving the directory list means querying {@link DirectoryListQuery#URI} and loading the
+ * resources of every directory provider package, which is far too expensive to repeat on every
+ * keystroke. The resolved rows are kept here as {@link DirectorySearchParams} templates and
+ * only reloaded after the directory list or the set of accounts on the device changes.
+ */
+class DirectoryListCache {
+    private static final String TAG = "DirectoryListCache";
+
+    private static final boolean DEBUG = false;
+
+    private static DirectoryListCache sInstance;
+
+    private final Context mContext;
+
+    /** Resolved directory rows, in provider order. Guarded by {@code this}. */
+    private List<DirectorySearchParams> mTemplates;
+
+    /**
+     * Bumped on every invalidation, so that a load racing with an invalidation does not
+     * store a result that is already out of date. Guarded by {@code this}.
+     */
+    private int mGeneration;
+
+    private DirectoryListCache(Context context) {
+        mContext = context;
+
+        context.getContentResolver().registerContentObserver(DirectoryListQuery.URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, new IntentFilter(AccountManager.LOGIN_ACCOUNTS_CHANGED_ACTION));
+    }
+
+    public static synchronized DirectoryListCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new DirectoryListCache(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns a fresh list of {@link DirectorySearchParams} for all directories, ordered for
+     * the given account as described in
+     * {@link BaseRecipientAdapter#setupOtherDirectories(Context, Cursor, Account)}. The
+     * returned objects may be modified by the caller. Returns null if the directory list could
+     * not be loaded.
+     */
+    public List<DirectorySearchParams> getDirectories(Account account) {
+        final List<DirectorySearchParams> templates = getTemplates();
+        if (templates == null) {
+            return null;
+        }
+        final List<DirectorySearchParams> copies =
+                new ArrayList<DirectorySearchParams>(templates.size());
+        for (DirectorySearchParams template : templates) {
+            copies.add(copyOf(template));
+        }
+        return BaseRecipientAdapter.orderDirectoriesForAccount(copies, account);
+    }
+
+    /**
+     * Drops the cached directory list. The next call to {@link #getDirectories(Account)} will
+     * reload it.
+     */
+    public synchronized void invalidate() {
+        if (DEBUG) {
+            Log.d(TAG, "Directory list invalidated");
+        }
+        mTemplates = null;
+        mGeneration++;
+    }
+
+    private List<DirectorySearchParams> getTemplates() {
+        final int generation;
+        synchronized (this) {
+            if (mTemplates != null) {
+                return mTemplates;
+            }
+            generation = mGeneration;
+        }
+
+        // Load outside the lock; the directory query may be slow and other threads only need
+        // to wait for it if there is nothing cached.
+        final Cursor directoryCursor = mContext.getContentResolver().query(
+                DirectoryListQuery.URI, DirectoryListQuery.PROJECTION, null, null, null);
+        if (directoryCursor == null) {
+            return null;
+        }
+        final List<DirectorySearchParams> templates;
+        try {
+            templates = BaseRecipientAdapter.loadDirectories(mContext, directoryCursor);
+        } finally {
+            directoryCursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mTemplates = templates;
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Loaded " + templates.size() + " directories");
+        }
+        return templates;
+    }
+
+    private static DirectorySearchParams copyOf(DirectorySearchParams template) {
+        final DirectorySearchParams params = new DirectorySearchParams();
+        params.directoryId = template.directoryId;
+        params.directoryType = template.directoryType;
+        params.displayName = template.displayName;
+        params.accountName = template.accountName;
+        params.accountType = template.accountType;
+        return params;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs directory queries for all recipient fields of the process on one small, shared thread
+ * pool, so that the number of threads does not grow with the number of fields or directories.
+ *
+ * Queued tasks are ordered by priority, then by submission order. Each task may have a
+ * timeout, counted from when it starts running, after which its query is cancelled and it is
+ * completed with a null result.
+ */
+class DirectorySearchEngine {
+    private static final String TAG = "DirectorySearchEngine";
+
+    /** Autocomplete searches the user is waiting for. */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /** Resolving recipients already in a field. */
+    public static final int PRIORITY_LOOKUP = 1;
+    /** Work nobody is waiting for, e.g. refreshing caches. */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int POOL_SIZE = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private static final ThreadPoolExecutor sExecutor;
+    static {
+        sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "DirectorySearch #" + mCount.incrementAndGet());
+                    }
+                });
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * A unit of work for the shared executor. {@link #doInBackground()} runs on a pool thread,
+     * {@link #onResult(Object)} exactly once, on the main thread unless
+     * {@link #deliversOnMainThread()} is overridden.
+     */
+    public abstract static class Task<T> implements Runnable, Comparable<Task<?>> {
+        private final int mPriority;
+        private final long mSequence = sSequence.getAndIncrement();
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final AtomicBoolean mDone = new AtomicBoolean();
+        private volatile long mTimeoutMillis;
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!mDone.get()) {
+                    mCancellationSignal.cancel();
+                    deliver(null);
+                }
+            }
+        };
+
+        public Task(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Cancelled when the task times out or is cancelled. Queries run by the task should
+         * pass it to the content provider.
+         */
+        public CancellationSignal getCancellationSignal() {
+            return mCancellationSignal;
+        }
+
+        /**
+         * Cancels the task. Returns true if {@link #onResult(Object)} will not be called, false
+         * if the task had already completed.
+         */
+        public boolean cancel() {
+            if (mDone.compareAndSet(false, true)) {
+                sMainHandler.removeCallbacks(mTimeoutRunnable);
+                mCancellationSignal.cancel();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isDone() {
+            return mDone.get();
+        }
+
+        protected abstract T doInBackground();
+
+        protected abstract void onResult(T result);
+
+        /**
+         * Whether {@link #onResult(Object)} is posted to the main thread. If false, it is called
+         * on the pool thread, or on the main thread if the task timed out, and must be thread
+         * safe.
+         */
+        protected boolean deliversOnMainThread() {
+            return true;
+        }
+
+        @Override
+        public final void run() {
+            if (mDone.get()) {
+                return;
+            }
+            if (mTimeoutMillis > 0) {
+                sMainHandler.postDelayed(mTimeoutRunnable, mTimeoutMillis);
+            }
+            T result = null;
+            try {
+                result = doInBackground();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Directory task failed", e);
+            }
+            deliver(result);
+        }
+
+        private void deliver(final T result) {
+            if (!mDone.compareAndSet(false, true)) {
+                return;
+            }
+            sMainHandler.removeCallbacks(mTimeoutRunnable);
+            if (!deliversOnMainThread()) {
+                onResult(result);
+                return;
+            }
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onResult(result);
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Task<?> another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private DirectorySearchEngine() {
+    }
+
+    /** Queues the given task with no timeout. */
+    public static void execute(Task<?> task) {
+        sExecutor.execute(task);
+    }
+
+    /**
+     * Queues the given task. If it has not completed within {@code timeoutMillis} of starting
+     * to run, its query is cancelled and it completes with a null result. Time spent waiting
+     * in the queue does not count.
+     */
+    public static void execute(Task<?> task, long timeoutMillis) {
+        task.mTimeoutMillis = timeoutMillis;
+        sExecutor.execute(task);
+    }
+}
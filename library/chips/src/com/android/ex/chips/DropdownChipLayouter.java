@@ -6,9 +6,7 @@ import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.StateListDrawable;
-import android.net.Uri;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.IdRes;
 import android.support.annotation.LayoutRes;
@@ -363,21 +361,11 @@ public class DropdownChipLayouter {
         if (showImage) {
             switch (type) {
                 case BASE_RECIPIENT:
-                    byte[] photoBytes = entry.getPhotoBytes();
-                    if (photoBytes != null && photoBytes.length > 0) {
-                        final Bitmap photo = BitmapFactory.decodeByteArray(photoBytes, 0,
-                            photoBytes.length);
-                        view.setImageBitmap(photo);
-                    } else {
-                        view.setImageResource(getDefaultPhotoResId());
-                    }
-                    break;
                 case RECIPIENT_ALTERNATES:
-                    Uri thumbnailUri = entry.getPhotoThumbnailUri();
-                    if (thumbnailUri != null) {
-                        // TODO: see if this needs to be done outside the main thread
-                        // as it may be too slow to get immediately.
-                        view.setImageURI(thumbnailUri);
+                    // The photo is loaded asynchronously by the adapter's PhotoManager.
+                    final Bitmap photo = entry.decodePhotoBitmap();
+                    if (photo != null) {
+                        view.setImageBitmap(photo);
                     } else {
                         view.setImageResource(getDefaultPhotoResId());
                     }
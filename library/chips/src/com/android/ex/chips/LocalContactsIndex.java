@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.ex.chips.BaseRecipientAdapter.TemporaryEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory index over the local destinations of one query type (email or phone), used to
+ * answer autocomplete for the default directory without a round trip to the contacts
+ * provider.
+ *
+ * The index is built once in the background and kept up to date from a
+ * {@link ContentObserver}. On JB MR2 and above only contacts changed or deleted since the last
+ * update are re-read; on older releases the index is rebuilt from scratch. Lookups are served
+ * from an immutable {@link Snapshot}: all tokens of all rows (display name words, the
+ * destination and, for phone numbers, the bare digits) sorted in one array, so that every
+ * token with a given prefix is found with a binary search.
+ */
+class LocalContactsIndex {
+    private static final String TAG = "LocalContactsIndex";
+
+    private static final boolean DEBUG = false;
+
+    /** Contact changes usually come in bursts; wait this long before re-reading them. */
+    private static final long UPDATE_DELAY_MILLIS = 1000;
+
+    /** Mirrors the ranking of the provider's filter queries: most contacted first. */
+    private static final String SORT_ORDER =
+            Contacts.TIMES_CONTACTED + " DESC, " + Contacts.DISPLAY_NAME + " ASC";
+
+    private static final Map<Queries.Query, LocalContactsIndex> sInstances =
+            new HashMap<Queries.Query, LocalContactsIndex>();
+
+    private final ContentResolver mContentResolver;
+    private final Queries.Query mQuery;
+    private final boolean mIsPhone;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Null until the first build has finished. */
+    private volatile Snapshot mSnapshot;
+
+    /** Whether an update has been scheduled and not started yet. */
+    private final AtomicBoolean mUpdatePending = new AtomicBoolean();
+    /** Guarded by {@code this}; see {@link #update()}. */
+    private long mLastUpdateTimestamp;
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            DirectorySearchEngine.execute(new DirectorySearchEngine.Task<Void>(
+                    DirectorySearchEngine.PRIORITY_BACKGROUND) {
+                @Override
+                protected Void doInBackground() {
+                    update();
+                    return null;
+                }
+
+                @Override
+                protected void onResult(Void result) {
+                }
+            });
+        }
+    };
+
+    private LocalContactsIndex(Context context, Queries.Query query) {
+        mContentResolver = context.getContentResolver();
+        mQuery = query;
+        mIsPhone = query == Queries.PHONE;
+
+        mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        scheduleUpdate(UPDATE_DELAY_MILLIS);
+                    }
+                });
+        scheduleUpdate(0);
+    }
+
+    /**
+     * Returns the index for the given query type, starting to build it if necessary.
+     */
+    public static LocalContactsIndex getInstance(Context context, Queries.Query query) {
+        synchronized (sInstances) {
+            LocalContactsIndex index = sInstances.get(query);
+            if (index == null) {
+                final Context appContext = context.getApplicationContext();
+                index = new LocalContactsIndex(appContext != null ? appContext : context, query);
+                sInstances.put(query, index);
+            }
+            return index;
+        }
+    }
+
+    /** Whether the index has been built and can answer queries. */
+    public boolean isReady() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * Returns up to {@code limit} entries matching the constraint, best ranked first, or null
+     * if the index is not ready yet. Every whitespace separated word of the constraint must be
+     * the prefix of some token of a matching entry.
+     */
+    public List<TemporaryEntry> query(CharSequence constraint, int limit) {
+        final Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return null;
+        }
+        final String[] words = TextUtils.split(constraint.toString().trim().toLowerCase(), "\\s+");
+        BitSet matches = null;
+        for (String word : words) {
+            if (word.length() == 0) {
+                continue;
+            }
+            BitSet wordMatches = snapshot.rowsWithTokenPrefix(word);
+            if (mIsPhone) {
+                final String digits = digitsOf(word);
+                if (digits.length() > 0 && !digits.equals(word)) {
+                    wordMatches.or(snapshot.rowsWithTokenPrefix(digits));
+                }
+            }
+            if (matches == null) {
+                matches = wordMatches;
+            } else {
+                matches.and(wordMatches);
+            }
+        }
+        final List<TemporaryEntry> entries = new ArrayList<TemporaryEntry>();
+        if (matches == null) {
+            return entries;
+        }
+        // Rows are stored in rank order, so walking the set bits yields the best matches first.
+        for (int row = matches.nextSetBit(0); row >= 0 && entries.size() < limit;
+                row = matches.nextSetBit(row + 1)) {
+            entries.add(snapshot.rows[row]);
+        }
+        return entries;
+    }
+
+    private void scheduleUpdate(long delayMillis) {
+        if (mUpdatePending.compareAndSet(false, true)) {
+            mHandler.postDelayed(mUpdateRunnable, delayMillis);
+        }
+    }
+
+    /**
+     * Runs on a {@link DirectorySearchEngine} thread. Synchronized since a change arriving
+     * while an update is running schedules another one.
+     */
+    private synchronized void update() {
+        mUpdatePending.set(false);
+        final Snapshot current = mSnapshot;
+        // Taken before reading, so that changes made while reading are picked up next time.
+        final long start = System.currentTimeMillis();
+        try {
+            if (current == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                final List<TemporaryEntry> rows = readRows(null, null);
+                if (rows != null) {
+                    mSnapshot = new Snapshot(rows, mIsPhone);
+                }
+            } else {
+                final Snapshot updated = applyChanges(current, mLastUpdateTimestamp);
+                if (updated != null) {
+                    mSnapshot = updated;
+                }
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "Cannot read contacts, the index stays unavailable", e);
+            return;
+        }
+        mLastUpdateTimestamp = start;
+        if (DEBUG) {
+            final Snapshot snapshot = mSnapshot;
+            Log.d(TAG, "Index updated: " + (snapshot != null ? snapshot.rows.length : 0)
+                    + " rows in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Re-reads the contacts changed since {@code since} and drops the deleted ones. Returns
+     * null if the provider could not be queried. Needs the change timestamps of
+     * {@link Build.VERSION_CODES#JELLY_BEAN_MR2}.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private Snapshot applyChanges(Snapshot current, long since) {
+        final String[] sinceArgs = new String[] { String.valueOf(since) };
+
+        // All rows of updated and deleted contacts are dropped, then the current rows of the
+        // updated ones are read again. Updated contacts are looked up separately since one
+        // whose last destination was removed has no rows left to find it by.
+        final Set<Long> removedContacts = new HashSet<Long>();
+        if (!readContactIds(Contacts.CONTENT_URI, Contacts._ID,
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", sinceArgs, removedContacts)
+                || !readContactIds(DeletedContacts.CONTENT_URI, DeletedContacts.CONTACT_ID,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?", sinceArgs,
+                removedContacts)) {
+            return null;
+        }
+        if (removedContacts.isEmpty()) {
+            return current;
+        }
+        final List<TemporaryEntry> changedRows = readRows(
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", sinceArgs);
+        if (changedRows == null) {
+            return null;
+        }
+
+        final List<TemporaryEntry> rows = new ArrayList<TemporaryEntry>(
+                current.rows.length + changedRows.size());
+        for (TemporaryEntry entry : current.rows) {
+            if (!removedContacts.contains(entry.contactId)) {
+                rows.add(entry);
+            }
+        }
+        if (!changedRows.isEmpty()) {
+            // Keep the ranking consistent without another query: the updated contacts were
+            // most likely just contacted, so they go first.
+            rows.addAll(0, changedRows);
+        }
+        return new Snapshot(rows, mIsPhone);
+    }
+
+    private boolean readContactIds(Uri uri, String column, String selection,
+            String[] selectionArgs, Set<Long> out) {
+        final Cursor cursor = mContentResolver.query(uri, new String[] { column }, selection,
+                selectionArgs, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                out.add(cursor.getLong(0));
+            }
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<TemporaryEntry> readRows(String selection, String[] selectionArgs) {
+        final Cursor cursor = mContentResolver.query(mQuery.getContentUri(),
+                mQuery.getProjection(), selection, selectionArgs, SORT_ORDER);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final List<TemporaryEntry> rows = new ArrayList<TemporaryEntry>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                rows.add(new TemporaryEntry(cursor, null /* directoryId */));
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String digitsOf(String s) {
+        final StringBuilder digits = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (Character.isDigit(c)) {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    /**
+     * An immutable view of the index. {@link #tokens} holds every token in sorted order and
+     * {@link #tokenRows} the row each token belongs to.
+     */
+    private static final class Snapshot {
+        final TemporaryEntry[] rows;
+        final String[] tokens;
+        final int[] tokenRows;
+
+        Snapshot(List<TemporaryEntry> rowList, boolean isPhone) {
+            rows = rowList.toArray(new TemporaryEntry[rowList.size()]);
+
+            final List<Token> tokenList = new ArrayList<Token>(rows.length * 3);
+            final Set<String> rowTokens = new HashSet<String>();
+            for (int row = 0; row < rows.length; row++) {
+                rowTokens.clear();
+                final TemporaryEntry entry = rows[row];
+                if (entry.displayName != null) {
+                    addNameTokens(entry.displayName.toLowerCase(), rowTokens);
+                }
+                if (entry.destination != null) {
+                    final String destination = entry.destination.toLowerCase();
+                    rowTokens.add(destination);
+                    if (isPhone) {
+                        rowTokens.add(digitsOf(destination));
+                    }
+                }
+                for (String token : rowTokens) {
+                    if (token.length() > 0) {
+                        tokenList.add(new Token(token, row));
+                    }
+                }
+            }
+            final Token[] sorted = tokenList.toArray(new Token[tokenList.size()]);
+            Arrays.sort(sorted);
+            tokens = new String[sorted.length];
+            tokenRows = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                tokens[i] = sorted[i].text;
+                tokenRows[i] = sorted[i].row;
+            }
+        }
+
+        /** Returns the set of rows having at least one token that starts with the prefix. */
+        BitSet rowsWithTokenPrefix(String prefix) {
+            final BitSet result = new BitSet(rows.length);
+            int i = Arrays.binarySearch(tokens, prefix);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (; i < tokens.length && tokens[i].startsWith(prefix); i++) {
+                result.set(tokenRows[i]);
+            }
+            return result;
+        }
+
+        /**
+         * Adds every word of the name, so that "smi" matches "John Smith", and the full name
+         * for constraints spanning punctuation such as "o'br".
+         */
+        private static void addNameTokens(String name, Set<String> out) {
+            out.add(name);
+            final int length = name.length();
+            int wordStart = -1;
+            for (int i = 0; i <= length; i++) {
+                final boolean isWordChar = i < length && Character.isLetterOrDigit(name.charAt(i));
+                if (isWordChar && wordStart < 0) {
+                    wordStart = i;
+                } else if (!isWordChar && wordStart >= 0) {
+                    out.add(name.substring(wordStart, i));
+                    wordStart = -1;
+                }
+            }
+        }
+    }
+
+    private static final class Token implements Comparable<Token> {
+        final String text;
+        final int row;
+
+        Token(String text, int row) {
+            this.text = text;
+            this.row = row;
+        }
+
+        @Override
+        public int compareTo(Token another) {
+            final int result = text.compareTo(another.text);
+            return result != 0 ? result : row - another.row;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.telephony.PhoneNumberUtils;
+
+import java.util.Locale;
+
+/**
+ * Recognizes and normalizes the phone numbers of recipients, for fields in phone query mode.
+ *
+ * {@link #isPhoneNumber} accepts exactly what the pattern below accepts, without allocating.
+ * It comes from android.util.Patterns, tweaked to handle a "1" before parens, so numbers such
+ * as "1 (425) 222-2342" match:
+ * <pre>
+ * (\+[0-9]+[\- \.]*)?              +&lt;digits&gt;&lt;sdd&gt;*
+ * (1?[ ]*\([0-9]+\)[\- \.]*)?      1(&lt;digits&gt;)&lt;sdd&gt;*
+ * ([0-9][0-9\- \.][0-9\- \.]+[0-9]) &lt;digit&gt;&lt;digit|sdd&gt;+&lt;digit&gt;
+ * </pre>
+ * where sdd is a space, dot or dash.
+ *
+ * {@link #normalize} returns the E.164 form of a number for the country of the default
+ * locale. Results are memoized, as the same numbers are normalized again every time their
+ * chips are looked up.
+ */
+final class PhoneNumberNormalizer {
+    private static final int MAX_ENTRIES = 256;
+
+    /** Stands for numbers that have no E.164 form, as the cache cannot hold null. */
+    private static final String NOT_A_NUMBER = "";
+
+    private static final Object sLock = new Object();
+    /** Guarded by {@code sLock}. */
+    private static LruCache<String, String> sCache;
+    /** The country the cached numbers were normalized for. Guarded by {@code sLock}. */
+    private static String sCountry;
+
+    private PhoneNumberNormalizer() {
+    }
+
+    /**
+     * Returns whether the given text is a phone number.
+     */
+    public static boolean isPhoneNumber(CharSequence number) {
+        // TODO: replace this with libphonenumber's isPossibleNumber (see PhoneNumberUtil). One
+        // complication is that it requires the sender's region which comes from the
+        // CurrentCountryIso. For now, let's just do this simple match.
+        if (number == null) {
+            return false;
+        }
+        final int len = number.length();
+        int paren = -1;
+        for (int i = 0; i < len; i++) {
+            if (number.charAt(i) == '(') {
+                paren = i;
+                break;
+            }
+        }
+
+        int i = 0;
+        if (paren < 0) {
+            if (len > 0 && number.charAt(0) == '+') {
+                // +<digits><sdd>*, then as early a digit as possible to start the rest.
+                if (len < 2 || !isDigit(number.charAt(1))) {
+                    return false;
+                }
+                i = 2;
+                if (i < len && !isDigit(number.charAt(i))) {
+                    i = skipSeparators(number, i, len);
+                }
+            }
+            return isLocalNumber(number, i, len);
+        }
+
+        // Before the paren: (+<digits><sdd>*)? 1? <space>*
+        if (number.charAt(0) == '+') {
+            i = 1;
+            final int digitsStart = i;
+            while (i < paren && isDigit(number.charAt(i))) {
+                i++;
+            }
+            if (i == digitsStart) {
+                return false;
+            }
+            i = skipSeparators(number, i, paren);
+        }
+        if (i < paren && number.charAt(i) == '1') {
+            i++;
+        }
+        while (i < paren && number.charAt(i) == ' ') {
+            i++;
+        }
+        if (i != paren) {
+            return false;
+        }
+
+        // (<digits>)<sdd>*
+        i = paren + 1;
+        final int digitsStart = i;
+        while (i < len && isDigit(number.charAt(i))) {
+            i++;
+        }
+        if (i == digitsStart || i == len || number.charAt(i) != ')') {
+            return false;
+        }
+        i = skipSeparators(number, i + 1, len);
+        return isLocalNumber(number, i, len);
+    }
+
+    /**
+     * Returns the E.164 form of the given number for the country of the default locale, or
+     * null if it has none.
+     *
+     * {@link PhoneNumberUtils#formatNumberToE164} requires API level 21; below that, the digits
+     * and a leading plus are kept and everything else is dropped.
+     */
+    public static String normalize(String number) {
+        if (number == null) {
+            return null;
+        }
+        final String country = Locale.getDefault().getCountry();
+        synchronized (sLock) {
+            if (sCache == null || !country.equals(sCountry)) {
+                sCache = new LruCache<String, String>(MAX_ENTRIES);
+                sCountry = country;
+            }
+            final String cached = sCache.get(number);
+            if (cached != null) {
+                return cached != NOT_A_NUMBER ? cached : null;
+            }
+        }
+
+        final String normalized;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            normalized = PhoneNumberUtils.formatNumberToE164(number, country);
+        } else {
+            normalized = stripSeparators(number);
+        }
+
+        synchronized (sLock) {
+            if (country.equals(sCountry)) {
+                sCache.put(number, normalized != null ? normalized : NOT_A_NUMBER);
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * Replaces all unicode (e.g. Arabic, Persian) digits with their decimal digit equivalents.
+     * Returns the given number itself if it has none.
+     *
+     * Copied from PhoneNumberUtils.java to avoid API level 21 requirement.
+     */
+    public static String replaceUnicodeDigits(String number) {
+        final int len = number.length();
+        int i = 0;
+        while (i < len && !isUnicodeDigit(number.charAt(i))) {
+            i++;
+        }
+        if (i == len) {
+            return number;
+        }
+        final StringBuilder normalizedDigits = new StringBuilder(len);
+        normalizedDigits.append(number, 0, i);
+        for (; i < len; i++) {
+            final char c = number.charAt(i);
+            final int digit = Character.digit(c, 10);
+            if (digit != -1) {
+                normalizedDigits.append(digit);
+            } else {
+                normalizedDigits.append(c);
+            }
+        }
+        return normalizedDigits.toString();
+    }
+
+    /** Returns whether [start, end) is <digit><digit|sdd>+<digit>. */
+    private static boolean isLocalNumber(CharSequence number, int start, int end) {
+        if (end - start < 4 || !isDigit(number.charAt(start))
+                || !isDigit(number.charAt(end - 1))) {
+            return false;
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            final char c = number.charAt(i);
+            if (!isDigit(c) && !isSeparator(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSeparators(CharSequence number, int start, int end) {
+        int i = start;
+        while (i < end && isSeparator(number.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static String stripSeparators(String number) {
+        final String digits = replaceUnicodeDigits(number);
+        final int len = digits.length();
+        final StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            final char c = digits.charAt(i);
+            if (isDigit(c) || (c == '+' && sb.length() == 0)) {
+                sb.append(c);
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '-' || c == ' ' || c == '.';
+    }
+
+    private static boolean isUnicodeDigit(char c) {
+        return !isDigit(c) && Character.digit(c, 10) != -1;
+    }
+}
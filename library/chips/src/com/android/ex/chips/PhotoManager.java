@@ -22,7 +22,12 @@ package com.android.ex.chips;
  */
 public interface PhotoManager {
 
-    /** The number of photos cached in this Adapter. */
+    /**
+     * The number of photos cached in this Adapter.
+     *
+     * @deprecated {@link DefaultPhotoManager} budgets its caches in bytes instead.
+     */
+    @Deprecated
     public static final int PHOTO_CACHE_SIZE = 20;
 
     /**
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.android.ex.chips.BaseRecipientAdapter.TemporaryEntry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of autocomplete results, shared by all {@link BaseRecipientAdapter}s.
+ *
+ * Results are kept per {@link Key} and served without querying for {@link #FRESH_MILLIS}. Up
+ * to {@link #MAX_STALE_MILLIS} they are still served, but refreshed in the background. Identical
+ * requests made while a query is running wait for that query instead of issuing their own;
+ * they never wait for a background refresh.
+ * Results of the local default directory are dropped whenever the contacts change.
+ */
+class QueryResultCache {
+    private static final String TAG = "QueryResultCache";
+
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_ENTRIES = 100;
+    private static final long FRESH_MILLIS = 30 * 1000;
+    private static final long MAX_STALE_MILLIS = 10 * 60 * 1000;
+
+    /** How often a request waiting on another one checks whether it was cancelled itself. */
+    private static final long WAIT_POLL_MILLIS = 50;
+
+    /** Loads the results for a key from the provider. */
+    interface Loader {
+        /**
+         * Returns the results for {@code limit}, or null if the query failed or was cancelled
+         * through the given signal.
+         */
+        List<TemporaryEntry> load(int limit, CancellationSignal signal);
+    }
+
+    /** Identifies one autocomplete query. */
+    static final class Key {
+        private final Queries.Query mQuery;
+        private final Account mAccount;
+        /** Null for the default directory. */
+        private final Long mDirectoryId;
+        private final String mConstraint;
+
+        Key(Queries.Query query, Account account, Long directoryId, CharSequence constraint) {
+            mQuery = query;
+            mAccount = account;
+            mDirectoryId = directoryId;
+            mConstraint = constraint.toString();
+        }
+
+        boolean isDefaultDirectory() {
+            return mDirectoryId == null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mQuery == other.mQuery
+                    && (mAccount == null ? other.mAccount == null : mAccount.equals(other.mAccount))
+                    && (mDirectoryId == null ? other.mDirectoryId == null
+                            : mDirectoryId.equals(other.mDirectoryId))
+                    && mConstraint.equals(other.mConstraint);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mQuery.hashCode();
+            result = 31 * result + (mAccount != null ? mAccount.hashCode() : 0);
+            result = 31 * result + (mDirectoryId != null ? mDirectoryId.hashCode() : 0);
+            result = 31 * result + mConstraint.hashCode();
+            return result;
+        }
+    }
+
+    private static final class CachedResult {
+        final List<TemporaryEntry> entries;
+        final int limit;
+        final long time;
+
+        CachedResult(List<TemporaryEntry> entries, int limit, long time) {
+            this.entries = entries;
+            this.limit = limit;
+            this.time = time;
+        }
+
+        /**
+         * Whether these results answer a query for {@code requestedLimit}: either they were
+         * loaded for at least that many, or they are all there is.
+         */
+        boolean covers(int requestedLimit) {
+            return limit >= requestedLimit
+                    || entries.size() < limit + BaseRecipientAdapter.ALLOWANCE_FOR_DUPLICATES;
+        }
+    }
+
+    /** A query in progress, which identical requests wait for. */
+    private static final class InFlight {
+        final int limit;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile List<TemporaryEntry> result;
+        volatile boolean cancelled;
+
+        InFlight(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    private static QueryResultCache sInstance;
+
+    /** Guarded by {@code this}. */
+    private final LruCache<Key, CachedResult> mCache =
+            new LruCache<Key, CachedResult>(MAX_ENTRIES);
+    /** Guarded by {@code this}. */
+    private final Map<Key, InFlight> mInFlight = new HashMap<Key, InFlight>();
+    /**
+     * Keys being refreshed in the background. Kept apart from {@link #mInFlight} so that
+     * interactive requests never wait behind a background task. Guarded by {@code this}.
+     */
+    private final Set<Key> mRefreshing = new HashSet<Key>();
+
+    private QueryResultCache(Context context) {
+        context.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI,
+                true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clearDefaultDirectory();
+                    }
+                });
+    }
+
+    public static synchronized QueryResultCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new QueryResultCache(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the results for the given key, using the cache or an identical query already in
+     * progress where possible and the loader otherwise. Returns null if the results could not
+     * be loaded or {@code signal} was cancelled. Blocks; must not be called on the UI thread.
+     */
+    public List<TemporaryEntry> get(Key key, int limit, CancellationSignal signal,
+            Loader loader) {
+        while (true) {
+            final InFlight flight;
+            boolean leader = false;
+            synchronized (this) {
+                final CachedResult cached = mCache.get(key);
+                if (cached != null && cached.covers(limit)) {
+                    final long age = SystemClock.elapsedRealtime() - cached.time;
+                    if (age < MAX_STALE_MILLIS) {
+                        if (age >= FRESH_MILLIS) {
+                            refreshLocked(key, cached.limit, loader);
+                        }
+                        if (DEBUG) {
+                            Log.d(TAG, "Cache hit for \"" + key.mConstraint + "\", age " + age);
+                        }
+                        return trim(cached.entries, limit);
+                    }
+                }
+                InFlight existing = mInFlight.get(key);
+                if (existing == null || existing.limit < limit) {
+                    existing = new InFlight(limit);
+                    mInFlight.put(key, existing);
+                    leader = true;
+                }
+                flight = existing;
+            }
+
+            if (leader) {
+                return load(key, flight, signal, loader);
+            }
+            if (!await(flight, signal)) {
+                return null;
+            }
+            if (!flight.cancelled) {
+                return flight.result != null ? trim(flight.result, limit) : null;
+            }
+            // The query we waited for was cancelled by its own caller; run it again.
+        }
+    }
+
+    /** Drops all cached results of the local default directory. */
+    public synchronized void clearDefaultDirectory() {
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.isDefaultDirectory()) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    private List<TemporaryEntry> load(Key key, InFlight flight, CancellationSignal signal,
+            Loader loader) {
+        List<TemporaryEntry> result = null;
+        try {
+            result = loader.load(flight.limit, signal);
+            if (result != null) {
+                result = Collections.unmodifiableList(result);
+            }
+        } finally {
+            synchronized (this) {
+                if (result != null) {
+                    mCache.put(key, new CachedResult(result, flight.limit,
+                            SystemClock.elapsedRealtime()));
+                }
+                if (mInFlight.get(key) == flight) {
+                    mInFlight.remove(key);
+                }
+            }
+            flight.result = result;
+            flight.cancelled = result == null && signal != null && signal.isCanceled();
+            flight.done.countDown();
+        }
+        return result;
+    }
+
+    /** Waits for the flight to finish. Returns false if our own signal was cancelled first. */
+    private static boolean await(InFlight flight, CancellationSignal signal) {
+        try {
+            while (!flight.done.await(WAIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (signal != null && signal.isCanceled()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void refreshLocked(final Key key, int limit, final Loader loader) {
+        if (mInFlight.containsKey(key) || !mRefreshing.add(key)) {
+            return;
+        }
+        // Nobody waits for this flight; it only writes the cache.
+        final InFlight flight = new InFlight(limit);
+        DirectorySearchEngine.execute(new DirectorySearchEngine.Task<Void>(
+                DirectorySearchEngine.PRIORITY_BACKGROUND) {
+            @Override
+            protected Void doInBackground() {
+                try {
+                    load(key, flight, getCancellationSignal(), loader);
+                } finally {
+                    synchronized (QueryResultCache.this) {
+                        mRefreshing.remove(key);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            protected void onResult(Void result) {
+            }
+        });
+    }
+
+    private static List<TemporaryEntry> trim(List<TemporaryEntry> entries, int limit) {
+        final int max = limit + BaseRecipientAdapter.ALLOWANCE_FOR_DUPLICATES;
+        return entries.size() > max ? entries.subList(0, max) : entries;
+    }
+}
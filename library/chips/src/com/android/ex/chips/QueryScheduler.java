@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks which constraint the autocomplete queries of a {@link BaseRecipientAdapter} are
+ * running for, debounces keystrokes and cancels provider queries once the constraint they were
+ * issued for has been superseded.
+ *
+ * Every constraint change moves the scheduler to a new generation. Queries register a
+ * {@link CancellationSignal} for the generation they belong to, and all signals of older
+ * generations are cancelled as soon as a newer generation starts.
+ */
+class QueryScheduler {
+    /** Debounce window value selecting a window derived from the observed typing speed. */
+    public static final int DEBOUNCE_ADAPTIVE = -1;
+
+    /** The adaptive window is this many times the average interval between keystrokes. */
+    private static final float ADAPTIVE_WINDOW_FACTOR = 1.5f;
+    /**
+     * Upper bound for the adaptive window. If the user types slower than this, the next
+     * keystroke is unlikely to arrive in time to save a query and no delay is applied.
+     */
+    private static final long MAX_ADAPTIVE_WINDOW_MILLIS = 300;
+    /** Pauses longer than this are not counted as typing when averaging keystroke intervals. */
+    private static final long MAX_KEYSTROKE_INTERVAL_MILLIS = 1000;
+
+    private final Object mLock = new Object();
+
+    /** Guarded by {@link #mLock}. */
+    private int mGeneration;
+    /** In-flight queries and the generation each was issued for. Guarded by {@link #mLock}. */
+    private final Map<CancellationSignal, Integer> mInFlight =
+            new IdentityHashMap<CancellationSignal, Integer>();
+
+    private volatile int mDebounceMillis;
+    /** Whether generations are driven by {@link #onConstraintChanged()}. */
+    private volatile boolean mDriven;
+
+    /** Only touched from the UI thread, in {@link #onConstraintChanged()}. */
+    private long mLastKeystrokeTime;
+    private volatile long mAverageKeystrokeInterval = MAX_KEYSTROKE_INTERVAL_MILLIS;
+
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+
+    /**
+     * Sets the debounce window in milliseconds, 0 to disable debouncing or
+     * {@link #DEBOUNCE_ADAPTIVE} to derive it from the typing speed.
+     */
+    public void setDebounceMillis(int millis) {
+        mDebounceMillis = millis;
+    }
+
+    public int getDebounceMillis() {
+        return mDebounceMillis;
+    }
+
+    /**
+     * Called on the UI thread whenever the text being filtered changes. Starts a new
+     * generation and cancels every query issued for an older one.
+     */
+    public void onConstraintChanged() {
+        mDriven = true;
+        final long now = SystemClock.uptimeMillis();
+        if (mLastKeystrokeTime != 0) {
+            final long interval = now - mLastKeystrokeTime;
+            if (interval < MAX_KEYSTROKE_INTERVAL_MILLIS) {
+                // Exponentially weighted, so that the window follows changes in typing speed.
+                mAverageKeystrokeInterval = (mAverageKeystrokeInterval * 3 + interval) / 4;
+            }
+        }
+        mLastKeystrokeTime = now;
+        nextGeneration();
+    }
+
+    /**
+     * Called from the filter thread when filtering for a new constraint starts. Returns the
+     * generation the filter's queries belong to.
+     */
+    public int onFilterStarted() {
+        if (mDriven) {
+            synchronized (mLock) {
+                return mGeneration;
+            }
+        }
+        // Nobody reports constraint changes to us, so every filter pass is its own generation.
+        return nextGeneration();
+    }
+
+    public int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    public boolean isCurrent(int generation) {
+        synchronized (mLock) {
+            return generation == mGeneration;
+        }
+    }
+
+    /**
+     * Blocks the calling worker thread for the debounce window. Returns early, with false, as
+     * soon as the generation is superseded; returns true if it is still current afterwards.
+     */
+    public boolean awaitDebounce(int generation) {
+        final long window = getDebounceWindow();
+        final long deadline = SystemClock.uptimeMillis() + window;
+        synchronized (mLock) {
+            long remaining = window;
+            while (generation == mGeneration && remaining > 0) {
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - SystemClock.uptimeMillis();
+            }
+            return generation == mGeneration;
+        }
+    }
+
+    /**
+     * Returns a signal for a query issued for the given generation. The signal is already
+     * cancelled if the generation has been superseded. It must be passed to
+     * {@link #release(CancellationSignal)} once the query is finished.
+     */
+    public CancellationSignal acquire(int generation) {
+        final CancellationSignal signal = new CancellationSignal();
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                signal.cancel();
+            }
+            mInFlight.put(signal, generation);
+        }
+        return signal;
+    }
+
+    /** Records the outcome of a query started with {@link #acquire(int)}. */
+    public void release(CancellationSignal signal) {
+        synchronized (mLock) {
+            mInFlight.remove(signal);
+        }
+        if (signal.isCanceled()) {
+            mCancelledCount.incrementAndGet();
+        } else {
+            mCompletedCount.incrementAndGet();
+        }
+    }
+
+    /** Number of queries cancelled because their constraint was superseded. */
+    public int getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    /** Number of queries that ran to completion. */
+    public int getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    private long getDebounceWindow() {
+        final int debounceMillis = mDebounceMillis;
+        if (debounceMillis != DEBOUNCE_ADAPTIVE) {
+            return Math.max(0, debounceMillis);
+        }
+        final long window = (long) (mAverageKeystrokeInterval * ADAPTIVE_WINDOW_FACTOR);
+        return window <= MAX_ADAPTIVE_WINDOW_MILLIS ? window : 0;
+    }
+
+    private int nextGeneration() {
+        final List<CancellationSignal> stale = new ArrayList<CancellationSignal>();
+        final int generation;
+        synchronized (mLock) {
+            generation = ++mGeneration;
+            for (Map.Entry<CancellationSignal, Integer> entry : mInFlight.entrySet()) {
+                if (entry.getValue() < generation) {
+                    stale.add(entry.getKey());
+                }
+            }
+            // Wake up filters waiting out their debounce window.
+            mLock.notifyAll();
+        }
+        // Cancel outside the lock; cancellation calls into the content provider.
+        for (CancellationSignal signal : stale) {
+            signal.cancel();
+        }
+        return generation;
+    }
+}
@@ -23,37 +23,52 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.drawable.StateListDrawable;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
-import com.android.ex.chips.BaseRecipientAdapter.DirectoryListQuery;
 import com.android.ex.chips.BaseRecipientAdapter.DirectorySearchParams;
 import com.android.ex.chips.DropdownChipLayouter.AdapterType;
 import com.android.ex.chips.Queries.Query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * RecipientAlternatesAdapter backs the RecipientEditTextView for managing contacts
  * queried by email or by phone number.
  */
 public class RecipientAlternatesAdapter extends CursorAdapter {
+    /**
+     * @deprecated {@link #getMatchingRecipients} no longer limits the number of addresses it
+     * looks up; they are resolved in chunks of {@link #LOOKUP_CHUNK_SIZE}.
+     */
+    @Deprecated
     public static final int MAX_LOOKUPS = 50;
 
+    /**
+     * The number of addresses looked up per IN (...) query, well below SQLite's limit of 999
+     * bind variables per statement.
+     */
+    static final int LOOKUP_CHUNK_SIZE = 100;
+
     private final long mCurrentId;
 
     private int mCheckedItemPosition = -1;
@@ -64,10 +79,46 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
 
     public static final int QUERY_TYPE_EMAIL = 0;
     public static final int QUERY_TYPE_PHONE = 1;
+
+    /** A directory that has not answered a reverse lookup in this time is given up on. */
+    private static final long DIRECTORY_LOOKUP_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * How many directory lookups of one {@link #getMatchingRecipients} call are queued or
+     * running at a time, so that a long recipient list does not flood the shared executor.
+     */
+    private static final int MAX_DIRECTORY_LOOKUPS_IN_FLIGHT = 6;
+
     private final Long mDirectoryId;
     private DropdownChipLayouter mDropdownChipLayouter;
     private final StateListDrawable mDeleteDrawable;
 
+    private PhotoManager mPhotoManager;
+
+    /**
+     * Entries built for the rows so far, kept so that a photo loaded for a row's entry is still
+     * there when the row is bound again.
+     */
+    private final SparseArray<RecipientEntry> mEntries = new SparseArray<RecipientEntry>();
+
+    private final PhotoManager.PhotoManagerCallback mPhotoCallback =
+            new PhotoManager.PhotoManagerCallback() {
+                @Override
+                public void onPhotoBytesPopulated() {
+                    // The photo was cached and is already set on the entry being bound.
+                }
+
+                @Override
+                public void onPhotoBytesAsynchronouslyPopulated() {
+                    notifyDataSetChanged();
+                }
+
+                @Override
+                public void onPhotoBytesAsyncLoadFailed() {
+                    // Keep showing the default photo.
+                }
+            };
+
     private static final Map<String, String> sCorrectedPhotoUris = new HashMap<String, String>();
 
     public interface RecipientMatchCallback {
@@ -101,24 +152,12 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
         } else {
             query = Queries.PHONE;
         }
-        int addressesSize = Math.min(MAX_LOOKUPS, inAddresses.size());
-        HashSet<String> addresses = new HashSet<String>();
-        StringBuilder bindString = new StringBuilder();
-        // Create the "?" string and set up arguments.
+        final int addressesSize = inAddresses.size();
+        final LinkedHashSet<String> addresses = new LinkedHashSet<String>();
         for (int i = 0; i < addressesSize; i++) {
-            if (addressType == QUERY_TYPE_EMAIL) {
-                Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(inAddresses.get(i).toLowerCase());
-                addresses.add(tokens.length > 0 ? tokens[0].getAddress() : inAddresses.get(i));
-            } else {
-                String number = PhoneNumberUtils.formatNumberToE164(inAddresses.get(i),
-                        Locale.getDefault().getCountry());
-                if (number != null) {
-                    addresses.add(number);
-                }
-            }
-            bindString.append("?");
-            if (i < addressesSize - 1) {
-                bindString.append(",");
+            final String address = normalizeAddress(inAddresses.get(i), addressType);
+            if (address != null) {
+                addresses.add(address);
             }
         }
 
@@ -126,31 +165,127 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
             Log.d(TAG, "Doing reverse lookup for " + addresses.toString());
         }
 
-        String[] addressArray = new String[addresses.size()];
-        addresses.toArray(addressArray);
-        HashMap<String, RecipientEntry> recipientEntries = null;
-        Cursor c = null;
+        if (adapter != null && adapter.isPersistentLookupCacheEnabled()) {
+            // Hand out what was resolved before right away, then revalidate everything below.
+            final int cacheType = query == Queries.PHONE ? QUERY_TYPE_PHONE : QUERY_TYPE_EMAIL;
+            final RecipientLookupCache lookupCache = RecipientLookupCache.getInstance(context);
+            final Map<String, RecipientEntry> cachedEntries =
+                    lookupCache.get(cacheType, addresses);
+            if (!cachedEntries.isEmpty()) {
+                callback.matchesFound(cachedEntries);
+            }
+            callback = new CachingMatchCallback(adapter, lookupCache, cacheType, callback);
+        }
 
+        // Resolve the addresses in chunks, one IN (...) query each, handing every chunk's
+        // matches to the callback right away so that only the resolved addresses are kept.
+        final Set<String> resolvedAddresses = new HashSet<String>();
+        if (addresses.isEmpty()) {
+            callback.matchesFound(new HashMap<String, RecipientEntry>());
+        }
+        final ContentResolver resolver = context.getContentResolver();
+        final String[] chunk = new String[Math.min(LOOKUP_CHUNK_SIZE, addresses.size())];
+        int chunkSize = 0;
+        int remaining = addresses.size();
+        for (String address : addresses) {
+            chunk[chunkSize++] = address;
+            remaining--;
+            if (chunkSize == chunk.length || remaining == 0) {
+                final String[] chunkArgs = chunkSize == chunk.length
+                        ? chunk : Arrays.copyOf(chunk, chunkSize);
+                final HashMap<String, RecipientEntry> recipientEntries =
+                        lookUpChunk(resolver, query, chunkArgs);
+                resolvedAddresses.addAll(recipientEntries.keySet());
+                callback.matchesFound(recipientEntries);
+                chunkSize = 0;
+            }
+        }
+
+        final Set<String> matchesNotFound = new HashSet<String>();
+
+        getMatchingRecipientsFromDirectoryQueries(context, resolvedAddresses,
+                addresses, account, matchesNotFound, query, callback);
+
+        getMatchingRecipientsFromExtensionMatcher(adapter, matchesNotFound, callback);
+    }
+
+    /**
+     * Returns the form of an address that lookups and the persistent cache are keyed by: the
+     * lowercased email address or the normalized phone number. Null if there is none.
+     */
+    private static String normalizeAddress(String address, int addressType) {
+        if (addressType == QUERY_TYPE_EMAIL) {
+            Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(address.toLowerCase());
+            return tokens.length > 0 ? tokens[0].getAddress() : address;
+        }
+        return PhoneNumberNormalizer.normalize(address);
+    }
+
+    /** Records the outcome of a lookup in the persistent cache before passing it on. */
+    private static class CachingMatchCallback implements RecipientMatchCallback {
+        private final BaseRecipientAdapter mAdapter;
+        private final RecipientLookupCache mCache;
+        private final int mQueryType;
+        private final RecipientMatchCallback mCallback;
+
+        public CachingMatchCallback(BaseRecipientAdapter adapter, RecipientLookupCache cache,
+                int queryType, RecipientMatchCallback callback) {
+            mAdapter = adapter;
+            mCache = cache;
+            mQueryType = queryType;
+            mCallback = callback;
+        }
+
+        @Override
+        public void matchesFound(Map<String, RecipientEntry> results) {
+            if (mAdapter.isPersistentLookupCacheEnabled()) {
+                // Directories return addresses in their own format; key them the way they
+                // are looked up.
+                final HashMap<String, RecipientEntry> normalized =
+                        new HashMap<String, RecipientEntry>(results.size());
+                for (Map.Entry<String, RecipientEntry> result : results.entrySet()) {
+                    final String address = normalizeAddress(result.getKey(), mQueryType);
+                    if (address != null) {
+                        normalized.put(address, result.getValue());
+                    }
+                }
+                mCache.put(mQueryType, normalized);
+            }
+            mCallback.matchesFound(results);
+        }
+
+        @Override
+        public void matchesNotFound(Set<String> unfoundAddresses) {
+            if (mAdapter.isPersistentLookupCacheEnabled()) {
+                mCache.remove(mQueryType, unfoundAddresses);
+            }
+            mCallback.matchesNotFound(unfoundAddresses);
+        }
+    }
+
+    private static HashMap<String, RecipientEntry> lookUpChunk(ContentResolver resolver,
+            Queries.Query query, String[] addresses) {
+        final StringBuilder bindString = new StringBuilder(addresses.length * 2);
+        // Create the "?" string for the arguments.
+        for (int i = 0; i < addresses.length; i++) {
+            if (i > 0) {
+                bindString.append(",");
+            }
+            bindString.append("?");
+        }
+        Cursor c = null;
         try {
-            c = context.getContentResolver().query(
+            c = resolver.query(
                     query.getContentUri(),
                     query.getProjection(),
                     query.getProjection()[Queries.Query.DESTINATION] + " IN ("
-                            + bindString.toString() + ")", addressArray, null);
-            recipientEntries = processContactEntries(c, null /* directoryId */);
-            callback.matchesFound(recipientEntries);
+                            + bindString.toString() + ")", addresses, null);
+            return processContactEntries(c, null /* directoryId */);
         } finally {
             if (c != null) {
                 c.close();
             }
         }
-
-        final Set<String> matchesNotFound = new HashSet<String>();
-
-        getMatchingRecipientsFromDirectoryQueries(context, recipientEntries,
-                addresses, account, matchesNotFound, query, callback);
-
-        getMatchingRecipientsFromExtensionMatcher(adapter, matchesNotFound, callback);
     }
 
     public static void getMatchingRecipientsFromDirectoryQueries(Context context,
@@ -158,80 +293,196 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
             Account account, Set<String> matchesNotFound,
             RecipientMatchCallback callback) {
         getMatchingRecipientsFromDirectoryQueries(
-                context, recipientEntries, addresses, account,
+                context, recipientEntries.keySet(), addresses, account,
                 matchesNotFound, Queries.EMAIL, callback);
     }
 
     private static void getMatchingRecipientsFromDirectoryQueries(Context context,
-            Map<String, RecipientEntry> recipientEntries, Set<String> addresses,
+            Set<String> resolvedAddresses, Set<String> addresses,
             Account account, Set<String> matchesNotFound, Queries.Query query,
             RecipientMatchCallback callback) {
         // See if any entries did not resolve; if so, we need to check other
         // directories
 
-        if (recipientEntries.size() < addresses.size()) {
-            final List<DirectorySearchParams> paramsList;
-            Cursor directoryCursor = null;
-            try {
-                directoryCursor = context.getContentResolver().query(DirectoryListQuery.URI,
-                        DirectoryListQuery.PROJECTION, null, null, null);
-                if (directoryCursor == null) {
-                    paramsList = null;
-                } else {
-                    paramsList = BaseRecipientAdapter.setupOtherDirectories(context,
-                            directoryCursor, account);
-                }
-            } finally {
-                if (directoryCursor != null) {
-                    directoryCursor.close();
-                }
-            }
+        if (resolvedAddresses.size() < addresses.size()) {
+            final List<DirectorySearchParams> paramsList =
+                    DirectoryListCache.getInstance(context).getDirectories(account);
             // Run a directory query for each unmatched recipient.
             HashSet<String> unresolvedAddresses = new HashSet<String>();
             for (String address : addresses) {
-                if (!recipientEntries.containsKey(address)) {
+                if (!resolvedAddresses.contains(address)) {
                     unresolvedAddresses.add(address);
                 }
             }
 
             matchesNotFound.addAll(unresolvedAddresses);
 
-            if (paramsList != null) {
-                Cursor directoryContactsCursor = null;
-                for (String unresolvedAddress : unresolvedAddresses) {
-                    Long directoryId = null;
-                    for (int i = 0; i < paramsList.size(); i++) {
-                        try {
-                            directoryContactsCursor = doQuery(unresolvedAddress, 1,
-                                    paramsList.get(i).directoryId, account,
-                                    context.getContentResolver(), query);
-                        } finally {
-                            if (directoryContactsCursor != null
-                                    && directoryContactsCursor.getCount() == 0) {
-                                directoryContactsCursor.close();
-                                directoryContactsCursor = null;
-                            } else {
-                                directoryId = paramsList.get(i).directoryId;
-                                break;
+            if (paramsList != null && !unresolvedAddresses.isEmpty()) {
+                lookUpInDirectories(context, unresolvedAddresses, paramsList, account,
+                        matchesNotFound, query, callback);
+            }
+        }
+    }
+
+    /** The lookups of one address, one per directory in order of preference. */
+    private static class AddressLookup {
+        public final String address;
+        public final DirectorySearchEngine.Task<?>[] tasks;
+        public final boolean[] answered;
+        /** Null where the directory failed, timed out or has not answered yet. */
+        public final Map<String, RecipientEntry>[] entries;
+        /** The next directory to query. */
+        public int nextDirectory;
+        /**
+         * Directories from here on are not queried, because an earlier one matched or the
+         * address was decided.
+         */
+        public int endDirectory;
+        public boolean decided;
+
+        @SuppressWarnings("unchecked")
+        public AddressLookup(String address, int directoryCount) {
+            this.address = address;
+            tasks = new DirectorySearchEngine.Task<?>[directoryCount];
+            answered = new boolean[directoryCount];
+            entries = new Map[directoryCount];
+            endDirectory = directoryCount;
+        }
+    }
+
+    /** The outcome of looking up one address in one directory. */
+    private static class DirectoryLookupResult {
+        public final AddressLookup lookup;
+        public final int directory;
+        /** Null if the lookup failed or timed out. */
+        public final Map<String, RecipientEntry> entries;
+
+        public DirectoryLookupResult(AddressLookup lookup, int directory,
+                Map<String, RecipientEntry> entries) {
+            this.lookup = lookup;
+            this.directory = directory;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Looks up every address in the directories, running up to
+     * {@link #MAX_DIRECTORY_LOOKUPS_IN_FLIGHT} queries at a time on the shared
+     * {@link DirectorySearchEngine} executor. Like a sequential search, an address is resolved
+     * by the first directory in list order that matches it: a match is only used once all
+     * directories before it have answered without one, and directories after a match are not
+     * asked, or cancelled. Matches are passed to {@code callback} on the calling thread as
+     * they are decided; this method returns once all queries have finished. Must not be called
+     * from a {@link DirectorySearchEngine} thread.
+     */
+    private static void lookUpInDirectories(Context context, Set<String> addresses,
+            List<DirectorySearchParams> paramsList, final Account account,
+            Set<String> matchesNotFound, final Queries.Query query,
+            RecipientMatchCallback callback) {
+        final ContentResolver resolver = context.getContentResolver();
+        final BlockingQueue<DirectoryLookupResult> results =
+                new LinkedBlockingQueue<DirectoryLookupResult>();
+        final int directoryCount = paramsList.size();
+        final List<AddressLookup> lookups = new ArrayList<AddressLookup>(addresses.size());
+        for (String address : addresses) {
+            lookups.add(new AddressLookup(address, directoryCount));
+        }
+
+        int inFlight = 0;
+        // Addresses are queried in order, all directories of one before the next, so that the
+        // directories are asked about an address at about the same time.
+        int next = 0;
+        try {
+            while (true) {
+                while (inFlight < MAX_DIRECTORY_LOOKUPS_IN_FLIGHT && next < lookups.size()) {
+                    final AddressLookup lookup = lookups.get(next);
+                    if (lookup.nextDirectory >= lookup.endDirectory) {
+                        next++;
+                        continue;
+                    }
+                    final int directory = lookup.nextDirectory++;
+                    final long directoryId = paramsList.get(directory).directoryId;
+                    final DirectorySearchEngine.Task<Map<String, RecipientEntry>> task =
+                            new DirectorySearchEngine.Task<Map<String, RecipientEntry>>(
+                                    DirectorySearchEngine.PRIORITY_LOOKUP) {
+                        @Override
+                        protected Map<String, RecipientEntry> doInBackground() {
+                            final Cursor cursor = doQuery(lookup.address, 1, directoryId,
+                                    account, resolver, query, getCancellationSignal());
+                            if (cursor == null) {
+                                return null;
+                            }
+                            try {
+                                return processContactEntries(cursor, directoryId);
+                            } finally {
+                                cursor.close();
                             }
                         }
-                    }
-                    if (directoryContactsCursor != null) {
-                        try {
-                            final Map<String, RecipientEntry> entries =
-                                    processContactEntries(directoryContactsCursor, directoryId);
 
-                            for (final String address : entries.keySet()) {
-                                matchesNotFound.remove(address);
-                            }
+                        @Override
+                        protected void onResult(Map<String, RecipientEntry> entries) {
+                            results.add(new DirectoryLookupResult(lookup, directory, entries));
+                        }
 
-                            callback.matchesFound(entries);
-                        } finally {
-                            directoryContactsCursor.close();
+                        @Override
+                        protected boolean deliversOnMainThread() {
+                            return false;
                         }
+                    };
+                    lookup.tasks[directory] = task;
+                    inFlight++;
+                    DirectorySearchEngine.execute(task, DIRECTORY_LOOKUP_TIMEOUT_MILLIS);
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                final DirectoryLookupResult result = results.take();
+                inFlight--;
+                final AddressLookup lookup = result.lookup;
+                lookup.answered[result.directory] = true;
+                if (result.entries != null && !result.entries.isEmpty()) {
+                    lookup.entries[result.directory] = result.entries;
+                    // Directories after this one cannot win anymore.
+                    lookup.endDirectory = Math.min(lookup.endDirectory, result.directory + 1);
+                    for (int i = result.directory + 1; i < directoryCount; i++) {
+                        final DirectorySearchEngine.Task<?> task = lookup.tasks[i];
+                        if (task != null && task.cancel()) {
+                            inFlight--;
+                        }
+                    }
+                }
+                if (lookup.decided) {
+                    continue;
+                }
+
+                // The first directory that has not answered without a match decides.
+                int first = 0;
+                while (first < lookup.endDirectory && lookup.answered[first]
+                        && lookup.entries[first] == null) {
+                    first++;
+                }
+                if (first < lookup.endDirectory && !lookup.answered[first]) {
+                    continue;
+                }
+                lookup.decided = true;
+                if (first < lookup.endDirectory) {
+                    final Map<String, RecipientEntry> entries = lookup.entries[first];
+                    for (final String address : entries.keySet()) {
+                        matchesNotFound.remove(address);
                     }
+                    callback.matchesFound(entries);
                 }
             }
+        } catch (InterruptedException e) {
+            for (AddressLookup lookup : lookups) {
+                for (DirectorySearchEngine.Task<?> task : lookup.tasks) {
+                    if (task != null) {
+                        task.cancel();
+                    }
+                }
+            }
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -348,7 +599,8 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
     }
 
     private static Cursor doQuery(CharSequence constraint, int limit, Long directoryId,
-            Account account, ContentResolver resolver, Query query) {
+            Account account, ContentResolver resolver, Query query,
+            CancellationSignal cancellationSignal) {
         final Uri.Builder builder = query
                 .getContentFilterUri()
                 .buildUpon()
@@ -363,9 +615,12 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
             builder.appendQueryParameter(BaseRecipientAdapter.PRIMARY_ACCOUNT_NAME, account.name);
             builder.appendQueryParameter(BaseRecipientAdapter.PRIMARY_ACCOUNT_TYPE, account.type);
         }
-        final Cursor cursor = resolver.query(builder.build(), query.getProjection(), null, null,
-                null);
-        return cursor;
+        try {
+            return resolver.query(builder.build(), query.getProjection(), null, null, null,
+                    cancellationSignal);
+        } catch (OperationCanceledException e) {
+            return null;
+        }
     }
 
     public RecipientAlternatesAdapter(Context context, long contactId, Long directoryId,
@@ -388,6 +643,15 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
         mDeleteDrawable = deleteDrawable;
     }
 
+    /**
+     * Sets the photo manager that loads the photos of the rows, e.g. to share the caches of
+     * the {@link BaseRecipientAdapter} of the field. A {@link DefaultPhotoManager} is created
+     * if none is set.
+     */
+    public void setPhotoManager(PhotoManager photoManager) {
+        mPhotoManager = photoManager;
+    }
+
     private static Cursor getCursorForConstruction(Context context, long contactId,
             Long directoryId, String lookupKey, int queryType) {
         final Cursor cursor;
@@ -567,6 +831,15 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
     }
 
     public RecipientEntry getRecipientEntry(int position) {
+        RecipientEntry entry = mEntries.get(position);
+        if (entry == null) {
+            entry = createRecipientEntry(position);
+            mEntries.put(position, entry);
+        }
+        return entry;
+    }
+
+    private RecipientEntry createRecipientEntry(int position) {
         Cursor c = getCursor();
         c.moveToPosition(position);
         return RecipientEntry.constructTopLevelEntry(
@@ -604,11 +877,29 @@ public class RecipientAlternatesAdapter extends CursorAdapter {
     public void bindView(View view, Context context, Cursor cursor) {
         int position = cursor.getPosition();
         RecipientEntry entry = getRecipientEntry(position);
+        if (mPhotoManager == null) {
+            mPhotoManager = new DefaultPhotoManager(context, false /* useDiskCache */);
+        }
+        if (entry.getPhotoBytes() == null) {
+            // Shows the default photo until the photo is loaded and the row bound again.
+            if (mPhotoManager instanceof DefaultPhotoManager) {
+                ((DefaultPhotoManager) mPhotoManager).populatePhotoBytesAsync(entry,
+                        mPhotoCallback, DefaultPhotoManager.PRIORITY_VISIBLE);
+            } else {
+                mPhotoManager.populatePhotoBytesAsync(entry, mPhotoCallback);
+            }
+        }
 
         mDropdownChipLayouter.bindView(view, null, entry, position,
                 AdapterType.RECIPIENT_ALTERNATES, null, mDeleteDrawable);
     }
 
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        mEntries.clear();
+        return super.swapCursor(newCursor);
+    }
+
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
         return mDropdownChipLayouter.newView(AdapterType.RECIPIENT_ALTERNATES);
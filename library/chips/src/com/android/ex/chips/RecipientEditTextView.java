@@ -31,25 +31,31 @@ import android.graphics.BitmapFactory;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
+import android.graphics.PixelFormat;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Shader.TileMode;
+import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.StateListDrawable;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Parcelable;
+import android.support.v4.util.LruCache;
 import android.text.Editable;
 import android.text.InputType;
 import android.text.Layout;
+import android.text.NoCopySpan;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
@@ -65,6 +71,7 @@ import android.util.Log;
 import android.util.TypedValue;
 import android.view.ActionMode;
 import android.view.ActionMode.Callback;
+import android.view.Choreographer;
 import android.view.DragEvent;
 import android.view.GestureDetector;
 import android.view.KeyEvent;
@@ -75,6 +82,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewParent;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.widget.AdapterView;
@@ -90,19 +98,18 @@ import android.widget.TextView;
 
 import com.android.ex.chips.RecipientAlternatesAdapter.RecipientMatchCallback;
 import com.android.ex.chips.recipientchip.DrawableRecipientChip;
-import com.android.ex.chips.recipientchip.InvisibleRecipientChip;
 import com.android.ex.chips.recipientchip.ReplacementDrawableSpan;
 import com.android.ex.chips.recipientchip.VisibleRecipientChip;
 
+import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.WeakHashMap;
 
 /**
  * RecipientEditTextView is an auto complete text view for use with applications
@@ -120,14 +127,6 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     private static final String SEPARATOR = String.valueOf(COMMIT_CHAR_COMMA)
             + String.valueOf(COMMIT_CHAR_SPACE);
 
-    // This pattern comes from android.util.Patterns. It has been tweaked to handle a "1" before
-    // parens, so numbers such as "1 (425) 222-2342" match.
-    private static final Pattern PHONE_PATTERN
-            = Pattern.compile(                                  // sdd = space, dot, or dash
-            "(\\+[0-9]+[\\- \\.]*)?"                    // +<digits><sdd>*
-                    + "(1?[ ]*\\([0-9]+\\)[\\- \\.]*)?"         // 1(<digits>)<sdd>*
-                    + "([0-9][0-9\\- \\.][0-9\\- \\.]+[0-9])"); // <digit><digit|sdd>+<digit>
-
     private static final int DISMISS = "dismiss".hashCode();
     private static final long DISMISS_DELAY = 300;
 
@@ -135,9 +134,25 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     // Visible for testing.
     /*package*/ static final int CHIP_LIMIT = 2;
 
-    private static final int MAX_CHIPS_PARSED = 50;
+    private static final int MAX_CHIPS_PARSED = 500;
 
     private static int sSelectedTextColor = -1;
+
+    /** Upper bound for the memory used by rendered chip bitmaps. */
+    private static final int MAX_CHIP_BITMAP_CACHE_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Finished chip bitmaps of all views, by {@link #getChipBitmapCacheKey}. They are shared
+     * and must not be drawn into.
+     */
+    private static final LruCache<ChipBitmapKey, Bitmap> sChipBitmapCache =
+            new LruCache<ChipBitmapKey, Bitmap>((int) Math.min(
+                    Runtime.getRuntime().maxMemory() / 16, MAX_CHIP_BITMAP_CACHE_BYTES)) {
+                @Override
+                protected int sizeOf(ChipBitmapKey key, Bitmap value) {
+                    return value.getRowBytes() * value.getHeight();
+                }
+            };
     private static int sExcessTopPadding = -1;
 
     // Resources for displaying chips.
@@ -145,6 +160,10 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     private Drawable mChipDelete = null;
     private Drawable mInvalidChipBackground;
     private Drawable mChipBackgroundPressed;
+    // Resource ids of the backgrounds above, 0 if they were not loaded from a resource.
+    private int mChipBackgroundResId;
+    private int mInvalidChipBackgroundResId;
+    private int mChipBackgroundPressedResId;
 
     // Possible attr overrides
     private float mChipHeight;
@@ -167,6 +186,20 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     private static final int AVATAR_POSITION_START = 1;
 
     private Paint mWorkPaint = new Paint();
+    /** Text paint of chips drawn with {@link #CHIP_RENDERING_DIRECT}, reused on every draw. */
+    private final TextPaint mChipTextPaint = new TextPaint();
+
+    /**
+     * Chip rendering modes. See attr.xml for more details.
+     */
+    public static final int CHIP_RENDERING_BITMAP = 0;
+    public static final int CHIP_RENDERING_DIRECT = 1;
+    private int mChipRendering = CHIP_RENDERING_BITMAP;
+    // The shader of the last icon drawn by drawIconOnCanvas(), reused while the icon is the
+    // same, e.g. every time a directly drawn chip is drawn. Guarded by mIconMatrix.
+    private final Matrix mIconMatrix = new Matrix();
+    private Bitmap mIconShaderBitmap;
+    private BitmapShader mIconShader;
 
     private Tokenizer mTokenizer;
     private Validator mValidator;
@@ -182,6 +215,36 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     private DrawableRecipientChip mSelectedChip;
     private Bitmap mDefaultContactPhoto;
     private ReplacementDrawableSpan mMoreChip;
+    /** Sorted index of the chips in the text, see {@link #getChipIndex()}. */
+    private ChipSpanIndex mChipIndex;
+
+    /** Lazy chips whose contents currently exist, see {@link #updateLazyChips()}. */
+    private final ArrayList<LazyChipDrawable> mMaterializedChips =
+            new ArrayList<LazyChipDrawable>();
+    private final ArrayList<DrawableRecipientChip> mLazyChipsInRange =
+            new ArrayList<DrawableRecipientChip>();
+    private final Rect mVisibleRect = new Rect();
+    private boolean mLazyChipsDirty;
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollChangedListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            mLazyChipsDirty = true;
+        }
+    };
+
+    private final ViewTreeObserver.OnPreDrawListener mPreDrawListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            if (mLazyChipsDirty) {
+                mLazyChipsDirty = false;
+                updateLazyChips();
+            }
+            return true;
+        }
+    };
     private TextView mMoreItem;
 
     // VisibleForTesting
@@ -198,6 +261,9 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private ArrayList<DrawableRecipientChip> mRemovedSpans;
 
+    /** Entries passed to {@link #setRecipients(List)} before the view had a width. */
+    private ArrayList<RecipientEntry> mPendingRecipients;
+
     // Chip copy fields.
     private GestureDetector mGestureDetector;
     private Dialog mCopyDialog;
@@ -223,6 +289,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private IndividualReplacementTask mIndividualReplacements;
 
+    private final ChipReplacementBatch mReplacementBatch = new ChipReplacementBatch();
+
     private Runnable mHandlePendingChips = new Runnable() {
 
         @Override
@@ -232,6 +300,15 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     };
 
+    private final Runnable mSetPendingRecipients = new Runnable() {
+        @Override
+        public void run() {
+            if (mPendingRecipients != null) {
+                setRecipients(mPendingRecipients);
+            }
+        }
+    };
+
     private Runnable mDelayedShrink = new Runnable() {
 
         @Override
@@ -243,6 +320,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private RecipientEntryItemClickedListener mRecipientEntryItemClickedListener;
 
+    private ChipificationListener mChipificationListener;
+
+    private final PendingChipsChipifier mChipifier = new PendingChipsChipifier();
+
+    private PasteTask mPasteTask;
+
     public interface RecipientEntryItemClickedListener {
         /**
          * Callback that occurs whenever an auto-complete suggestion is clicked.
@@ -253,6 +336,16 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         void onRecipientEntryItemClicked(int charactersTyped, int position);
     }
 
+    public interface ChipificationListener {
+        /**
+         * Callback that occurs while more pending recipients than
+         * {@link #getMaxChipsParsed()} are turned into chips, a slice per frame.
+         * @param chipified the number of pending recipients handled so far
+         * @param total the number of pending recipients; equal to chipified when done
+         */
+        void onChipificationProgress(int chipified, int total);
+    }
+
     public RecipientEditTextView(Context context, AttributeSet attrs) {
         super(context, attrs);
         setChipDimensions(context, attrs);
@@ -323,16 +416,54 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         mRecipientEntryItemClickedListener = listener;
     }
 
+    public void setChipificationListener(ChipificationListener listener) {
+        mChipificationListener = listener;
+    }
+
+    @Override
+    public void dismissDropDown() {
+        super.dismissDropDown();
+        final BaseRecipientAdapter adapter = getAdapter();
+        if (adapter != null) {
+            // Nobody will see the photos of the suggestions anymore.
+            adapter.cancelPhotoRequests();
+        }
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         mAttachedToWindow = false;
+        cancelPaste();
+        // Frame callbacks would keep the detached view alive.
+        mChipifier.pause();
+        final ViewTreeObserver observer = getViewTreeObserver();
+        observer.removeOnScrollChangedListener(mScrollChangedListener);
+        observer.removeOnPreDrawListener(mPreDrawListener);
     }
 
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
         mAttachedToWindow = true;
+        final ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnScrollChangedListener(mScrollChangedListener);
+        observer.addOnPreDrawListener(mPreDrawListener);
+        mLazyChipsDirty = true;
+        mChipifier.resume();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        mLazyChipsDirty = true;
+    }
+
+    @Override
+    protected void onTextChanged(CharSequence text, int start, int lengthBefore,
+            int lengthAfter) {
+        super.onTextChanged(text, start, lengthBefore, lengthAfter);
+        mLazyChipsDirty = true;
     }
 
     @Override
@@ -371,12 +502,20 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     }
 
     /*package*/ DrawableRecipientChip getLastChip() {
-        DrawableRecipientChip last = null;
-        DrawableRecipientChip[] chips = getSortedRecipients();
-        if (chips != null && chips.length > 0) {
-            last = chips[chips.length - 1];
+        return getChipIndex().getLast();
+    }
+
+    /**
+     * Returns the sorted index of the chips in the current text, creating it if the text was
+     * replaced since it was last used. Must only be called on the UI thread: attaching the
+     * index sets a span on the text, and the index changes as the text does.
+     */
+    private ChipSpanIndex getChipIndex() {
+        final Spannable spannable = getSpannable();
+        if (mChipIndex == null || mChipIndex.getText() != spannable) {
+            mChipIndex = ChipSpanIndex.attach(spannable);
         }
-        return last;
+        return mChipIndex;
     }
 
     /**
@@ -401,6 +540,15 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     public void onSelectionChanged(int start, int end) {
         // When selection changes, see if it is inside the chips area.
         // If so, move the cursor back after the chips again.
+        if (mChipifier.isRunning()) {
+            // Keep the cursor out of the text that is still being turned into chips.
+            final int length = getText().length();
+            if (start < length) {
+                setSelection(length);
+            }
+            super.onSelectionChanged(start, end);
+            return;
+        }
         DrawableRecipientChip last = getLastChip();
         if (last != null && start < getSpannable().getSpanEnd(last)) {
             // Grab the last chip and set the cursor to after it.
@@ -601,15 +749,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      * @param contact The recipient entry to pull data from.
      * @param paint The paint to use to draw the bitmap.
      */
-    private Bitmap createSelectedChip(RecipientEntry contact, TextPaint paint) {
+    private Bitmap createSelectedChip(RecipientEntry contact, TextPaint paint,
+            ChipBitmapKey cacheKey) {
         paint.setColor(sSelectedTextColor);
         final ChipBitmapContainer bitmapContainer = createChipBitmap(contact, paint,
                 mChipBackgroundPressed, getResources().getColor(R.color.chip_background_selected));
-
-        if (bitmapContainer.loadIcon) {
-            loadAvatarIcon(contact, bitmapContainer);
-        }
-
+        loadChipBitmapIcon(contact, bitmapContainer, cacheKey);
         return bitmapContainer.bitmap;
     }
 
@@ -619,21 +764,78 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      * @param contact The recipient entry to pull data from.
      * @param paint The paint to use to draw the bitmap.
      */
-    private Bitmap createUnselectedChip(RecipientEntry contact, TextPaint paint) {
+    private Bitmap createUnselectedChip(RecipientEntry contact, TextPaint paint,
+            ChipBitmapKey cacheKey) {
         paint.setColor(getContext().getResources().getColor(android.R.color.black));
         ChipBitmapContainer bitmapContainer = createChipBitmap(contact, paint,
                 getChipBackground(contact), getDefaultChipBackgroundColor(contact));
+        loadChipBitmapIcon(contact, bitmapContainer, cacheKey);
+        return bitmapContainer.bitmap;
+    }
 
-        if (bitmapContainer.loadIcon) {
+    /**
+     * Draws the avatar into a new chip bitmap. The bitmap is shared under the given key, if
+     * any, only once it is finished, so that no shared bitmap is ever drawn into.
+     */
+    private void loadChipBitmapIcon(RecipientEntry contact, ChipBitmapContainer bitmapContainer,
+            ChipBitmapKey cacheKey) {
+        bitmapContainer.cacheKey = cacheKey;
+        if (bitmapContainer.loadIcon && shouldDrawPhoto(contact)) {
             loadAvatarIcon(contact, bitmapContainer);
+        } else if (cacheKey != null) {
+            sChipBitmapCache.put(cacheKey, bitmapContainer.bitmap);
         }
-        return bitmapContainer.bitmap;
     }
 
     private ChipBitmapContainer createChipBitmap(RecipientEntry contact, TextPaint paint,
             Drawable overrideBackgroundDrawable, int backgroundColor) {
+        final ChipLayout layout = measureChip(contact, paint, overrideBackgroundDrawable,
+                backgroundColor);
         final ChipBitmapContainer result = new ChipBitmapContainer();
 
+        // Create the background of the chip.
+        result.bitmap = Bitmap.createBitmap(layout.width, layout.height, Bitmap.Config.ARGB_8888);
+        drawChipBackgroundAndText(new Canvas(result.bitmap), layout, paint);
+
+        // Set the variables that are needed to draw the icon bitmap once it's loaded
+        result.left = layout.iconBounds.left;
+        result.top = layout.iconBounds.top;
+        result.right = layout.iconBounds.right;
+        result.bottom = layout.iconBounds.bottom;
+
+        return result;
+    }
+
+    /**
+     * Creates a chip drawable of the given contact that draws itself directly onto the canvas
+     * of the view, see {@link #CHIP_RENDERING_DIRECT}.
+     */
+    private Drawable createChipDrawable(RecipientEntry contact, boolean pressed,
+            TextPaint paint) {
+        final ChipLayout layout;
+        final int textColor;
+        if (pressed) {
+            textColor = sSelectedTextColor;
+            layout = measureChip(contact, paint, mChipBackgroundPressed,
+                    getResources().getColor(R.color.chip_background_selected));
+        } else {
+            textColor = getResources().getColor(android.R.color.black);
+            layout = measureChip(contact, paint, getChipBackground(contact),
+                    getDefaultChipBackgroundColor(contact));
+        }
+        final ChipDrawable result = new ChipDrawable(layout, textColor);
+        loadAvatarIcon(contact, result);
+        return result;
+    }
+
+    /**
+     * Measures the chip of the given contact: its size, ellipsized text and where the text and
+     * the icon go. The paint's text size is set to the chip font size.
+     */
+    private ChipLayout measureChip(RecipientEntry contact, TextPaint paint,
+            Drawable overrideBackgroundDrawable, int backgroundColor) {
+        final ChipLayout result = new ChipLayout();
+
         Rect backgroundPadding = new Rect();
         if (overrideBackgroundDrawable != null) {
             overrideBackgroundDrawable.getPadding(backgroundPadding);
@@ -661,42 +863,49 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         int width = Math.max(iconWidth * 2, textWidth + startPadding + mChipTextEndPadding
                 + iconWidth + backgroundPadding.left + backgroundPadding.right);
 
-        // Create the background of the chip.
-        result.bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        final Canvas canvas = new Canvas(result.bitmap);
-
-        // Check if the background drawable is set via attr
-        if (overrideBackgroundDrawable != null) {
-            overrideBackgroundDrawable.setBounds(0, 0, width, height);
-            overrideBackgroundDrawable.draw(canvas);
-        } else {
-            // Draw the default chip background
-            mWorkPaint.reset();
-            mWorkPaint.setColor(backgroundColor);
-            mWorkPaint.setAntiAlias(true);
-            final float radius = height / 2;
-            canvas.drawRoundRect(new RectF(0, 0, width, height), radius, radius,
-                    mWorkPaint);
-        }
+        result.width = width;
+        result.height = height;
+        result.background = overrideBackgroundDrawable;
+        result.backgroundColor = backgroundColor;
+        result.text = ellipsizedText;
 
         // Draw the text vertically aligned
-        int textX = shouldPositionAvatarOnRight() ?
+        result.textX = shouldPositionAvatarOnRight() ?
                 mChipTextEndPadding + backgroundPadding.left :
                 width - backgroundPadding.right - mChipTextEndPadding - textWidth;
-        canvas.drawText(ellipsizedText, 0, ellipsizedText.length(),
-                textX, getTextYOffset(height), paint);
+        result.textY = getTextYOffset(height);
 
-        // Set the variables that are needed to draw the icon bitmap once it's loaded
         int iconX = shouldPositionAvatarOnRight() ? width - backgroundPadding.right - iconWidth :
                 backgroundPadding.left;
-        result.left = iconX;
-        result.top = backgroundPadding.top;
-        result.right = iconX + iconWidth;
-        result.bottom = height - backgroundPadding.bottom;
+        result.iconBounds.set(iconX, backgroundPadding.top, iconX + iconWidth,
+                height - backgroundPadding.bottom);
 
         return result;
     }
 
+    /**
+     * Draws the background and the text of a measured chip, with its top left corner at the
+     * origin of the canvas.
+     */
+    private void drawChipBackgroundAndText(Canvas canvas, ChipLayout layout, Paint textPaint) {
+        // Check if the background drawable is set via attr
+        if (layout.background != null) {
+            layout.background.setBounds(0, 0, layout.width, layout.height);
+            layout.background.draw(canvas);
+        } else {
+            // Draw the default chip background
+            mWorkPaint.reset();
+            mWorkPaint.setColor(layout.backgroundColor);
+            mWorkPaint.setAntiAlias(true);
+            final float radius = layout.height / 2;
+            canvas.drawRoundRect(layout.bounds, radius, radius, mWorkPaint);
+            mWorkPaint.reset();
+        }
+
+        canvas.drawText(layout.text, 0, layout.text.length(), layout.textX, layout.textY,
+                textPaint);
+    }
+
     /**
      * Helper function that draws the loaded icon bitmap into the chips bitmap
      */
@@ -725,16 +934,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      * Returns the avatar icon to use for this recipient entry. Returns null if we don't want to
      * draw an icon for this recipient.
      */
-    private void loadAvatarIcon(final RecipientEntry contact,
-            final ChipBitmapContainer bitmapContainer) {
-        // Don't draw photos for recipients that have been typed in OR generated on the fly.
-        long contactId = contact.getContactId();
-        boolean drawPhotos = isPhoneQuery() ?
-                contactId != RecipientEntry.INVALID_CONTACT
-                : (contactId != RecipientEntry.INVALID_CONTACT
-                        && contactId != RecipientEntry.GENERATED_CONTACT);
-
-        if (drawPhotos) {
+    private void loadAvatarIcon(final RecipientEntry contact, final ChipIconTarget target) {
+        if (shouldDrawPhoto(contact)) {
             final byte[] origPhotoBytes = contact.getPhotoBytes();
             // There may not be a photo yet if anything but the first contact address
             // was selected.
@@ -750,10 +951,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
                     @Override
                     public void onPhotoBytesAsynchronouslyPopulated() {
-                        final byte[] loadedPhotoBytes = contact.getPhotoBytes();
-                        final Bitmap icon = BitmapFactory.decodeByteArray(loadedPhotoBytes, 0,
-                                loadedPhotoBytes.length);
-                        tryDrawAndInvalidate(icon);
+                        tryDrawAndInvalidate(contact.decodePhotoBitmap());
                     }
 
                     @Override
@@ -763,7 +961,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                     }
 
                     private void tryDrawAndInvalidate(Bitmap icon) {
-                        drawIcon(bitmapContainer, icon);
+                        target.setIcon(icon);
                         // The caller might originated from a background task. However, if the
                         // background task has already completed, the view might be already drawn
                         // on the UI but the callback would happen on the background thread.
@@ -782,13 +980,20 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                     }
                 });
             } else {
-                final Bitmap icon = BitmapFactory.decodeByteArray(origPhotoBytes, 0,
-                        origPhotoBytes.length);
-                drawIcon(bitmapContainer, icon);
+                target.setIcon(contact.decodePhotoBitmap());
             }
         }
     }
 
+    /** Returns false for recipients that have been typed in or generated on the fly. */
+    private boolean shouldDrawPhoto(RecipientEntry contact) {
+        long contactId = contact.getContactId();
+        return isPhoneQuery() ?
+                contactId != RecipientEntry.INVALID_CONTACT
+                : (contactId != RecipientEntry.INVALID_CONTACT
+                        && contactId != RecipientEntry.GENERATED_CONTACT);
+    }
+
     /**
      * Get the background drawable for a RecipientChip.
      */
@@ -814,58 +1019,161 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      * rectangle of the canvas.
      */
     protected void drawIconOnCanvas(Bitmap icon, Canvas canvas, RectF src, RectF dst) {
-        final Matrix matrix = new Matrix();
-
-        // Draw bitmap through shader first.
-        final BitmapShader shader = new BitmapShader(icon, TileMode.CLAMP, TileMode.CLAMP);
-        matrix.reset();
+        synchronized (mIconMatrix) {
+            // Draw bitmap through shader first.
+            if (icon != mIconShaderBitmap) {
+                mIconShader = new BitmapShader(icon, TileMode.CLAMP, TileMode.CLAMP);
+                mIconShaderBitmap = icon;
+            }
 
-        // Fit bitmap to bounds.
-        matrix.setRectToRect(src, dst, Matrix.ScaleToFit.FILL);
+            // Fit bitmap to bounds.
+            mIconMatrix.setRectToRect(src, dst, Matrix.ScaleToFit.FILL);
 
-        shader.setLocalMatrix(matrix);
-        mWorkPaint.reset();
-        mWorkPaint.setShader(shader);
-        mWorkPaint.setAntiAlias(true);
-        mWorkPaint.setFilterBitmap(true);
-        mWorkPaint.setDither(true);
-        canvas.drawCircle(dst.centerX(), dst.centerY(), dst.width() / 2f, mWorkPaint);
+            mIconShader.setLocalMatrix(mIconMatrix);
+            mWorkPaint.reset();
+            mWorkPaint.setShader(mIconShader);
+            mWorkPaint.setAntiAlias(true);
+            mWorkPaint.setFilterBitmap(true);
+            mWorkPaint.setDither(true);
+            canvas.drawCircle(dst.centerX(), dst.centerY(), dst.width() / 2f, mWorkPaint);
 
-        // Then draw the border.
-        final float borderWidth = 1f;
-        mWorkPaint.reset();
-        mWorkPaint.setColor(Color.TRANSPARENT);
-        mWorkPaint.setStyle(Style.STROKE);
-        mWorkPaint.setStrokeWidth(borderWidth);
-        mWorkPaint.setAntiAlias(true);
-        canvas.drawCircle(dst.centerX(), dst.centerY(), dst.width() / 2f - borderWidth / 2, mWorkPaint);
+            // Then draw the border.
+            final float borderWidth = 1f;
+            mWorkPaint.reset();
+            mWorkPaint.setColor(Color.TRANSPARENT);
+            mWorkPaint.setStyle(Style.STROKE);
+            mWorkPaint.setStrokeWidth(borderWidth);
+            mWorkPaint.setAntiAlias(true);
+            canvas.drawCircle(dst.centerX(), dst.centerY(), dst.width() / 2f - borderWidth / 2,
+                    mWorkPaint);
 
-        mWorkPaint.reset();
+            mWorkPaint.reset();
+        }
     }
 
     private DrawableRecipientChip constructChipSpan(RecipientEntry contact, boolean pressed) {
+        // Pass the full text, un-ellipsized, to the chip.
+        VisibleRecipientChip recipientChip =
+                new VisibleRecipientChip(createChipContent(contact, pressed), contact);
+        recipientChip.setExtraMargin(mLineSpacingExtra);
+        return recipientChip;
+    }
+
+    /**
+     * Creates a chip that only reserves the space of the given contact's chip. What it looks
+     * like is created once it scrolls into view, see {@link #updateLazyChips()}.
+     */
+    private DrawableRecipientChip createLazyChip(RecipientEntry contact) {
+        final TextPaint paint = getPaint();
+        final float defaultSize = paint.getTextSize();
+        final ChipLayout layout = measureChip(contact, paint, getChipBackground(contact),
+                getDefaultChipBackgroundColor(contact));
+        paint.setTextSize(defaultSize);
+
+        final LazyChipDrawable drawable = new LazyChipDrawable(contact, layout.width,
+                layout.height);
+        final VisibleRecipientChip recipientChip = new VisibleRecipientChip(drawable, contact);
+        recipientChip.setExtraMargin(mLineSpacingExtra);
+        drawable.mChip = recipientChip;
+        return recipientChip;
+    }
+
+    /** Creates the drawable showing the given contact's chip. */
+    private Drawable createChipContent(RecipientEntry contact, boolean pressed) {
         TextPaint paint = getPaint();
         float defaultSize = paint.getTextSize();
         int defaultColor = paint.getColor();
 
-        Bitmap tmpBitmap;
-        if (pressed) {
-            tmpBitmap = createSelectedChip(contact, paint);
-
+        final Drawable result;
+        if (mChipRendering == CHIP_RENDERING_DIRECT) {
+            result = createChipDrawable(contact, pressed, paint);
         } else {
-            tmpBitmap = createUnselectedChip(contact, paint);
+            // Chips that look the same share one bitmap, so that e.g. selecting and unselecting
+            // a chip or recreating the view on rotation does not rasterize it again.
+            final ChipBitmapKey cacheKey = getChipBitmapCacheKey(contact, pressed, paint);
+            Bitmap tmpBitmap = cacheKey != null ? sChipBitmapCache.get(cacheKey) : null;
+            if (tmpBitmap == null) {
+                if (pressed) {
+                    tmpBitmap = createSelectedChip(contact, paint, cacheKey);
+
+                } else {
+                    tmpBitmap = createUnselectedChip(contact, paint, cacheKey);
+                }
+            }
+            result = new BitmapDrawable(getResources(), tmpBitmap);
+            result.setBounds(0, 0, tmpBitmap.getWidth(), tmpBitmap.getHeight());
         }
 
-        // Pass the full text, un-ellipsized, to the chip.
-        Drawable result = new BitmapDrawable(getResources(), tmpBitmap);
-        result.setBounds(0, 0, tmpBitmap.getWidth(), tmpBitmap.getHeight());
-        VisibleRecipientChip recipientChip =
-                new VisibleRecipientChip(result, contact);
-        recipientChip.setExtraMargin(mLineSpacingExtra);
         // Return text to the original size.
         paint.setTextSize(defaultSize);
         paint.setColor(defaultColor);
-        return recipientChip;
+        return result;
+    }
+
+    /**
+     * Creates the contents of the lazy chips in and around the visible part of the view, and
+     * releases those of chips that are far from it, so that the work and memory spent on
+     * chips is proportional to what is on screen rather than to the number of recipients.
+     */
+    private void updateLazyChips() {
+        final Layout layout = getLayout();
+        if (layout == null || getWidth() <= 0) {
+            return;
+        }
+        int keepStart = -1;
+        int keepEnd = -1;
+        int createStart = -1;
+        int createEnd = -1;
+        if (getLocalVisibleRect(mVisibleRect)) {
+            // Create chips up to a screen beyond what is visible, and release them only once
+            // they are two screens away, so that scrolling back and forth reuses them.
+            final int offsetY = getScrollY() - getTotalPaddingTop();
+            final int top = mVisibleRect.top + offsetY;
+            final int bottom = mVisibleRect.bottom + offsetY;
+            final int height = mVisibleRect.height();
+            createStart = getOffsetOfLineAt(layout, top - height, true);
+            createEnd = getOffsetOfLineAt(layout, bottom + height, false);
+            keepStart = getOffsetOfLineAt(layout, top - 2 * height, true);
+            keepEnd = getOffsetOfLineAt(layout, bottom + 2 * height, false);
+        }
+
+        final Spannable spannable = getSpannable();
+        for (int i = mMaterializedChips.size() - 1; i >= 0; i--) {
+            final LazyChipDrawable drawable = mMaterializedChips.get(i);
+            final int start = spannable.getSpanStart(drawable.mChip);
+            if (start == -1 || start > keepEnd
+                    || spannable.getSpanEnd(drawable.mChip) < keepStart) {
+                drawable.release();
+                mMaterializedChips.remove(i);
+            }
+        }
+
+        if (createStart == -1) {
+            return;
+        }
+        boolean created = false;
+        mLazyChipsInRange.clear();
+        getChipIndex().collect(createStart, createEnd, mLazyChipsInRange);
+        for (DrawableRecipientChip chip : mLazyChipsInRange) {
+            if (chip instanceof ReplacementDrawableSpan) {
+                final Drawable drawable = ((ReplacementDrawableSpan) chip).getDrawable();
+                if (drawable instanceof LazyChipDrawable
+                        && ((LazyChipDrawable) drawable).materialize()) {
+                    mMaterializedChips.add((LazyChipDrawable) drawable);
+                    created = true;
+                }
+            }
+        }
+        mLazyChipsInRange.clear();
+        if (created) {
+            invalidate();
+        }
+    }
+
+    /** Returns the start or the end offset of the line at the given vertical position. */
+    private static int getOffsetOfLineAt(Layout layout, int y, boolean start) {
+        final int line = layout.getLineForVertical(Math.max(0, y));
+        return start ? layout.getLineStart(line) : layout.getLineEnd(line);
     }
 
     /**
@@ -899,6 +1207,55 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 - mChipTextEndPadding;
     }
 
+    /**
+     * Returns a key identifying the chip bitmap drawn for the given contact and state. It
+     * covers everything the bitmap depends on: the contact's text, validity and photo, the
+     * selected state, the width available to the chip and the chip styling of this view.
+     * Returns null if the styling cannot be identified, i.e. the background was not loaded
+     * from a resource, in which case the bitmap is not shared.
+     */
+    private ChipBitmapKey getChipBitmapCacheKey(RecipientEntry contact, boolean pressed,
+            TextPaint paint) {
+        final Drawable background;
+        final int backgroundResId;
+        final int backgroundColor;
+        final int textColor;
+        if (pressed) {
+            background = mChipBackgroundPressed;
+            backgroundResId = mChipBackgroundPressedResId;
+            backgroundColor = getResources().getColor(R.color.chip_background_selected);
+            textColor = sSelectedTextColor;
+        } else {
+            background = getChipBackground(contact);
+            backgroundResId = contact.isValid() ? mChipBackgroundResId
+                    : mInvalidChipBackgroundResId;
+            backgroundColor = getDefaultChipBackgroundColor(contact);
+            textColor = getResources().getColor(android.R.color.black);
+        }
+        if (background != null && backgroundResId == 0) {
+            return null;
+        }
+        final StringBuilder key = new StringBuilder();
+        key.append(contact.getDestination()).append('\u0000')
+                .append(createChipDisplayText(contact)).append('\u0000')
+                .append(contact.getContactId()).append('\u0000')
+                .append(contact.getPhotoThumbnailUri()).append('\u0000')
+                .append(contact.isValid()).append(',')
+                .append(pressed).append(',')
+                .append((int) calculateAvailableWidth()).append(',')
+                .append(shouldPositionAvatarOnRight()).append(',')
+                .append(isPhoneQuery()).append(',')
+                .append(mChipHeight).append(',')
+                .append(mChipFontSize).append(',')
+                .append(mChipTextStartPadding).append(',')
+                .append(mChipTextEndPadding).append(',')
+                .append(mTextHeight).append(',')
+                .append(backgroundResId).append(',')
+                .append(backgroundColor).append(',')
+                .append(textColor);
+        return new ChipBitmapKey(key.toString(), paint.getTypeface());
+    }
+
 
     private void setChipDimensions(Context context, AttributeSet attrs) {
         TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.RecipientEditTextView, 0,
@@ -910,6 +1267,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 .getDrawable(R.styleable.RecipientEditTextView_chipBackgroundPressed);
         mInvalidChipBackground = a
                 .getDrawable(R.styleable.RecipientEditTextView_invalidChipBackground);
+        mChipBackgroundResId =
+                a.getResourceId(R.styleable.RecipientEditTextView_chipBackground, 0);
+        mChipBackgroundPressedResId =
+                a.getResourceId(R.styleable.RecipientEditTextView_chipBackgroundPressed, 0);
+        mInvalidChipBackgroundResId =
+                a.getResourceId(R.styleable.RecipientEditTextView_invalidChipBackground, 0);
         mChipDelete = a.getDrawable(R.styleable.RecipientEditTextView_chipDelete);
         if (mChipDelete == null) {
             mChipDelete = r.getDrawable(R.drawable.ic_cancel_wht_24dp);
@@ -955,6 +1318,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                     .getDisplayMetrics());
         }
         mMaxChipsParsed = a.getInt(R.styleable.RecipientEditTextView_maxChips, MAX_CHIPS_PARSED);
+        mChipRendering =
+                a.getInt(R.styleable.RecipientEditTextView_chipRendering, CHIP_RENDERING_BITMAP);
 
         a.recycle();
     }
@@ -968,6 +1333,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     // Visible for testing.
     /* package */ void setChipBackground(Drawable chipBackground) {
         mChipBackground = chipBackground;
+        mChipBackgroundResId = 0;
     }
 
     // Visible for testing.
@@ -994,7 +1360,10 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     public void onSizeChanged(int width, int height, int oldw, int oldh) {
         super.onSizeChanged(width, height, oldw, oldh);
         if (width != 0 && height != 0) {
-            if (mPendingChipsCount > 0) {
+            if (mPendingRecipients != null) {
+                mHandler.removeCallbacks(mSetPendingRecipients);
+                mHandler.post(mSetPendingRecipients);
+            } else if (mPendingChipsCount > 0) {
                 postHandlePendingChips();
             } else {
                 checkChipWidths();
@@ -1046,34 +1415,32 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             return;
         }
 
+        if (mChipifier.isRunning()) {
+            // It picks up the new chips as well.
+            return;
+        }
+
         synchronized (mPendingChips) {
-            Editable editable = getText();
             // Tokenize!
-            if (mPendingChipsCount <= mMaxChipsParsed) {
-                for (int i = 0; i < mPendingChips.size(); i++) {
-                    String current = mPendingChips.get(i);
-                    int tokenStart = editable.toString().indexOf(current);
-                    // Always leave a space at the end between tokens.
-                    int tokenEnd = tokenStart + current.length() - 1;
-                    if (tokenStart >= 0) {
-                        // When we have a valid token, include it with the token
-                        // to the left.
-                        if (tokenEnd < editable.length() - 2
-                                && editable.charAt(tokenEnd) == COMMIT_CHAR_COMMA) {
-                            tokenEnd++;
-                        }
-                        createReplacementChip(tokenStart, tokenEnd, editable, i < CHIP_LIMIT
-                                || !mShouldShrink);
-                    }
-                    mPendingChipsCount--;
-                }
-                sanitizeEnd();
-            } else {
-                mNoChips = true;
+            mChipifier.reset();
+            if (mPendingChipsCount > mMaxChipsParsed) {
+                // Too many to do at once without freezing the UI; do a slice per frame.
+                mChipifier.start();
+                return;
             }
+            mChipifier.chipify(Long.MAX_VALUE);
+            sanitizeEnd();
+            finishPendingChips();
+        }
+    }
 
-            if (mTemporaryRecipients != null && mTemporaryRecipients.size() > 0
-                    && mTemporaryRecipients.size() <= RecipientAlternatesAdapter.MAX_LOOKUPS) {
+    /**
+     * Looks up the chips created from pending chips and hides those past the limit.
+     * Called once all pending chips have been turned into chips.
+     */
+    private void finishPendingChips() {
+        synchronized (mPendingChips) {
+            if (mTemporaryRecipients != null && mTemporaryRecipients.size() > 0) {
                 if (hasFocus() || mTemporaryRecipients.size() < CHIP_LIMIT) {
                     new RecipientReplacementTask().execute();
                     mTemporaryRecipients = null;
@@ -1092,8 +1459,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                     createMoreChip();
                 }
             } else {
-                // There are too many recipients to look up, so just fall back
-                // to showing addresses for all of them.
+                // There is nothing to look up.
                 mTemporaryRecipients = null;
                 createMoreChip();
             }
@@ -1143,16 +1509,17 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     /**
      * Create a chip that represents just the email address of a recipient. At some later
      * point, this chip will be attached to a real contact entry, if one exists.
+     * Returns the chip, or null if none was created.
      */
     // VisibleForTesting
-    void createReplacementChip(int tokenStart, int tokenEnd, Editable editable,
+    DrawableRecipientChip createReplacementChip(int tokenStart, int tokenEnd, Editable editable,
             boolean visible) {
         if (alreadyHasChip(tokenStart, tokenEnd)) {
             // There is already a chip present at this location.
             // Don't recreate it.
-            return;
+            return null;
         }
-        String token = editable.toString().substring(tokenStart, tokenEnd);
+        String token = TextUtils.substring(editable, tokenStart, tokenEnd);
         final String trimmedToken = token.trim();
         int commitCharIndex = trimmedToken.lastIndexOf(COMMIT_CHAR_COMMA);
         if (commitCharIndex != -1 && commitCharIndex == trimmedToken.length() - 1) {
@@ -1163,8 +1530,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             DrawableRecipientChip chip = null;
             try {
                 if (!mNoChips) {
-                    chip = visible ?
-                            constructChipSpan(entry, false) : new InvisibleRecipientChip(entry);
+                    chip = visible ? constructChipSpan(entry, false) : createLazyChip(entry);
                 }
             } catch (NullPointerException e) {
                 Log.e(TAG, e.getMessage(), e);
@@ -1178,19 +1544,9 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 chip.setOriginalText(token);
                 mTemporaryRecipients.add(chip);
             }
+            return chip;
         }
-    }
-
-    private static boolean isPhoneNumber(String number) {
-        // TODO: replace this function with libphonenumber's isPossibleNumber (see
-        // PhoneNumberUtil). One complication is that it requires the sender's region which
-        // comes from the CurrentCountryIso. For now, let's just do this simple match.
-        if (TextUtils.isEmpty(number)) {
-            return false;
-        }
-
-        Matcher match = PHONE_PATTERN.matcher(number);
-        return match.matches();
+        return null;
     }
 
     // VisibleForTesting
@@ -1198,7 +1554,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         if (TextUtils.isEmpty(token)) {
             return null;
         }
-        if (isPhoneQuery() && isPhoneNumber(token)) {
+        if (isPhoneQuery() && PhoneNumberNormalizer.isPhoneNumber(token)) {
             return RecipientEntry.constructFakePhoneEntry(token, true);
         }
         Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(token);
@@ -1255,10 +1611,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     }
 
     private String tokenizeAddress(String destination) {
-        if (getAdapter().isPhoneQuery() && isPhoneNumber(destination)) {
-            //return PhoneNumberUtils.formatNumberToE164(destination,
-            //    Locale.getDefault().getCountry());
-            // TODO: The code above requires API level 21. Do some simple cleanup for now
+        if (getAdapter().isPhoneQuery() && PhoneNumberNormalizer.isPhoneNumber(destination)) {
+            // The same form the addresses are looked up with, so that the results match.
+            final String number = PhoneNumberNormalizer.normalize(destination);
+            if (number != null) {
+                return number;
+            }
             String[] invalid = {"-", " "};
             String[] valid = {"", ""};
             return TextUtils.replace(destination, invalid, valid).toString();
@@ -1474,12 +1832,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         if (mNoChips) {
             return true;
         }
-        DrawableRecipientChip[] chips =
-                getSpannable().getSpans(start, end, DrawableRecipientChip.class);
-        if ((chips == null || chips.length == 0)) {
-            return false;
-        }
-        return true;
+        return getChipIndex().intersects(start, end);
     }
 
     private void handleEdit(int start, int end) {
@@ -1560,6 +1913,10 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      */
     @Override
     protected void performFiltering(CharSequence text, int keyCode) {
+        if (getAdapter() != null) {
+            // Whatever the adapter is still querying for is out of date now.
+            getAdapter().notifyConstraintChanged();
+        }
         boolean isCompletedToken = isCompletedToken(text);
         if (enoughToFilter() && !isCompletedToken) {
             int end = getSelectionEnd();
@@ -1701,10 +2058,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     }
 
     private ListAdapter createAlternatesAdapter(DrawableRecipientChip chip) {
-        return new RecipientAlternatesAdapter(getContext(), chip.getContactId(),
-                chip.getDirectoryId(), chip.getLookupKey(), chip.getDataId(),
-                getAdapter().getQueryType(), this, mDropdownChipLayouter,
+        final RecipientAlternatesAdapter adapter = new RecipientAlternatesAdapter(getContext(),
+                chip.getContactId(), chip.getDirectoryId(), chip.getLookupKey(),
+                chip.getDataId(), getAdapter().getQueryType(), this, mDropdownChipLayouter,
                 constructStateListDeleteDrawable());
+        adapter.setPhotoManager(getAdapter().getPhotoManager());
+        return adapter;
     }
 
     private ListAdapter createSingleAddressAdapter(DrawableRecipientChip currentChip) {
@@ -1781,18 +2140,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     }
 
     private DrawableRecipientChip findChip(int offset) {
-        DrawableRecipientChip[] chips =
-                getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
         // Find the chip that contains this offset.
-        for (int i = 0; i < chips.length; i++) {
-            DrawableRecipientChip chip = chips[i];
-            int start = getChipStart(chip);
-            int end = getChipEnd(chip);
-            if (offset >= start && offset <= end) {
-                return chip;
-            }
-        }
-        return null;
+        return getChipIndex().find(offset);
     }
 
     // Visible for testing.
@@ -1804,7 +2153,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             display = null;
         }
         String trimmedDisplayText;
-        if (isPhoneQuery() && isPhoneNumber(address)) {
+        if (isPhoneQuery() && PhoneNumberNormalizer.isPhoneNumber(address)) {
             trimmedDisplayText = address.trim();
         } else {
             if (address != null) {
@@ -1931,29 +2280,30 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         return entry;
     }
 
+    /**
+     * Returns whether a lookup result should replace the chip showing {@code current}: either
+     * the chip has not been resolved yet, or it was resolved, e.g. from the persistent lookup
+     * cache, and the lookup now reports the same destination differently.
+     */
+    private boolean isReplacementFor(RecipientEntry current, RecipientEntry replacement) {
+        if (RecipientEntry.isCreatedRecipient(current.getContactId())) {
+            return true;
+        }
+        if (replacement == null || !TextUtils.equals(tokenizeAddress(current.getDestination()),
+                tokenizeAddress(replacement.getDestination()))) {
+            return false;
+        }
+        final Uri currentPhoto = current.getPhotoThumbnailUri();
+        final Uri replacementPhoto = replacement.getPhotoThumbnailUri();
+        return current.getContactId() != replacement.getContactId()
+                || !TextUtils.equals(current.getDisplayName(), replacement.getDisplayName())
+                || (currentPhoto == null ? replacementPhoto != null
+                        : !currentPhoto.equals(replacementPhoto));
+    }
+
     // Visible for testing.
     /* package */DrawableRecipientChip[] getSortedRecipients() {
-        DrawableRecipientChip[] recips = getSpannable()
-                .getSpans(0, getText().length(), DrawableRecipientChip.class);
-        ArrayList<DrawableRecipientChip> recipientsList = new ArrayList<DrawableRecipientChip>(
-                Arrays.asList(recips));
-        final Spannable spannable = getSpannable();
-        Collections.sort(recipientsList, new Comparator<DrawableRecipientChip>() {
-
-            @Override
-            public int compare(DrawableRecipientChip first, DrawableRecipientChip second) {
-                int firstStart = spannable.getSpanStart(first);
-                int secondStart = spannable.getSpanStart(second);
-                if (firstStart < secondStart) {
-                    return -1;
-                } else if (firstStart > secondStart) {
-                    return 1;
-                } else {
-                    return 0;
-                }
-            }
-        });
-        return recipientsList.toArray(new DrawableRecipientChip[recipientsList.size()]);
+        return getChipIndex().toArray();
     }
 
     @Override
@@ -2525,8 +2875,25 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             return;
         }
 
-        removeTextChangedListener(mTextWatcher);
+        // A new paste replaces the one still being resolved.
+        cancelPaste();
 
+        // The pasted text replaces the selection, together with whatever was typed of the
+        // token before it.
+        final Editable editable = getText();
+        int selectionStart = Math.min(getSelectionStart(), getSelectionEnd());
+        int selectionEnd = Math.max(getSelectionStart(), getSelectionEnd());
+        if (selectionStart < 0) {
+            // No selection.
+            selectionStart = selectionEnd = editable.length();
+        }
+        final int start = findPastePrefixStart(editable, selectionStart);
+        String prefix = editable.subSequence(start, selectionStart).toString();
+
+        // Tokenize the pasted text in one forward pass; the chips are created off the UI thread
+        // and inserted in a single edit, see PasteTask.
+        final ArrayList<String> tokens = new ArrayList<String>();
+        String remainder = null;
         final ClipDescription clipDescription = clip.getDescription();
         for (int i = 0; i < clip.getItemCount(); i++) {
             final String mimeType = clipDescription.getMimeType(i);
@@ -2537,98 +2904,167 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 continue;
             }
 
-            final CharSequence pastedItem = clip.getItemAt(i).getText();
+            CharSequence pastedItem = clip.getItemAt(i).getText();
             if (!TextUtils.isEmpty(pastedItem)) {
-                final Editable editable = getText();
-                final int start = getSelectionStart();
-                final int end = getSelectionEnd();
-                if (start < 0 || end < 1) {
-                    // No selection.
-                    editable.append(pastedItem);
-                } else if (start == end) {
-                    // Insert at position.
-                    editable.insert(start, pastedItem);
-                } else {
-                    editable.append(pastedItem, start, end);
+                if (prefix != null) {
+                    pastedItem = prefix + pastedItem;
+                    prefix = null;
+                }
+                // Only the end of the last item is left for the user to complete.
+                if (remainder != null) {
+                    tokens.add(remainder);
                 }
-                handlePasteAndReplace();
+                remainder = tokenizePastedText(pastedItem, tokens);
             }
         }
 
-        mHandler.post(mAddTextWatcher);
+        if (!tokens.isEmpty()) {
+            mPasteTask = new PasteTask(tokens, remainder, start, selectionEnd);
+            mPasteTask.execute();
+        } else if (remainder != null) {
+            // Nothing to turn into chips.
+            insertPastedRecipients(Collections.<RecipientEntry>emptyList(), remainder, start,
+                    selectionEnd);
+        }
     }
 
-    @Override
-    public boolean onTextContextMenuItem(int id) {
-        if (id == android.R.id.paste) {
-            ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(
-                    Context.CLIPBOARD_SERVICE);
-            handlePasteClip(clipboard.getPrimaryClip());
-            return true;
+    /**
+     * Returns where the token typed before the given offset starts, so that it is completed
+     * by the pasted text. Chips are never part of it.
+     */
+    private int findPastePrefixStart(Editable editable, int offset) {
+        int start = mTokenizer.findTokenStart(editable, offset);
+        final DrawableRecipientChip[] chips = editable.getSpans(start, offset,
+                DrawableRecipientChip.class);
+        for (DrawableRecipientChip chip : chips) {
+            start = Math.max(start, editable.getSpanEnd(chip));
         }
-        return super.onTextContextMenuItem(id);
+        while (start < offset && editable.charAt(start) == ' ') {
+            start++;
+        }
+        return Math.min(start, offset);
     }
 
-    private void handlePasteAndReplace() {
-        ArrayList<DrawableRecipientChip> created = handlePaste();
-        if (created != null && created.size() > 0) {
-            // Perform reverse lookups on the pasted contacts.
-            IndividualReplacementTask replace = new IndividualReplacementTask();
-            replace.execute(created);
+    /**
+     * Cancels the paste still being resolved, if any. Its text is not inserted.
+     */
+    private void cancelPaste() {
+        if (mPasteTask != null) {
+            mPasteTask.cancel(false);
+            getText().removeSpan(mPasteTask.mPlaceholder);
+            mPasteTask = null;
         }
     }
 
+    /**
+     * Splits pasted text into recipient tokens with the tokenizer, in a single forward pass.
+     * Line breaks and tabs, e.g. of text copied from a spreadsheet, separate tokens as well.
+     * Adds the completed tokens to the list and returns the last token if it was not
+     * completed with a separator, or null.
+     */
     // Visible for testing.
-    /* package */ArrayList<DrawableRecipientChip> handlePaste() {
-        String text = getText().toString();
-        int originalTokenStart = mTokenizer.findTokenStart(text, getSelectionEnd());
-        String lastAddress = text.substring(originalTokenStart);
-        int tokenStart = originalTokenStart;
-        int prevTokenStart = 0;
-        DrawableRecipientChip findChip = null;
-        ArrayList<DrawableRecipientChip> created = new ArrayList<DrawableRecipientChip>();
-        if (tokenStart != 0) {
-            // There are things before this!
-            while (tokenStart != 0 && findChip == null && tokenStart != prevTokenStart) {
-                prevTokenStart = tokenStart;
-                tokenStart = mTokenizer.findTokenStart(text, tokenStart);
-                findChip = findChip(tokenStart);
-                if (tokenStart == originalTokenStart && findChip == null) {
-                    break;
-                }
+    /* package */ String tokenizePastedText(CharSequence text, List<String> tokens) {
+        final int length = text.length();
+        String remainder = null;
+        int segmentStart = 0;
+        while (segmentStart < length) {
+            int segmentEnd = segmentStart;
+            while (segmentEnd < length && !isPasteSeparator(text.charAt(segmentEnd))) {
+                segmentEnd++;
             }
-            if (tokenStart != originalTokenStart) {
-                if (findChip != null) {
-                    tokenStart = prevTokenStart;
-                }
-                int tokenEnd;
-                DrawableRecipientChip createdChip;
-                while (tokenStart < originalTokenStart) {
-                    tokenEnd = movePastTerminators(mTokenizer.findTokenEnd(getText().toString(),
-                            tokenStart));
-                    commitChip(tokenStart, tokenEnd, getText());
-                    createdChip = findChip(tokenStart);
-                    if (createdChip == null) {
-                        break;
+            // A view of the segment, so that the tokenizer cannot run past it.
+            final CharSequence segment = CharBuffer.wrap(text, segmentStart, segmentEnd);
+            final int segmentLength = segmentEnd - segmentStart;
+            int start = 0;
+            while (start < segmentLength) {
+                final int end = Math.min(mTokenizer.findTokenEnd(segment, start), segmentLength);
+                final String token = segment.subSequence(start, end).toString().trim();
+                if (token.length() > 0) {
+                    if (end < segmentLength || segmentEnd < length) {
+                        tokens.add(token);
+                        remainder = null;
+                    } else {
+                        remainder = token;
                     }
-                    // +1 for the space at the end.
-                    tokenStart = getSpannable().getSpanEnd(createdChip) + 1;
-                    created.add(createdChip);
                 }
+                start = end + 1;
             }
+            segmentStart = segmentEnd + 1;
         }
-        // Take a look at the last token. If the token has been completed with a
-        // commit character, create a chip.
-        if (isCompletedToken(lastAddress)) {
-            Editable editable = getText();
-            tokenStart = editable.toString().indexOf(lastAddress, originalTokenStart);
-            commitChip(tokenStart, editable.length(), editable);
-            created.add(findChip(tokenStart));
-        }
-        return created;
+        return remainder;
     }
 
-    // Visible for testing.
+    private static boolean isPasteSeparator(char c) {
+        return c == '\n' || c == '\r' || c == '\t';
+    }
+
+    /**
+     * Inserts chips for the given entries, followed by the given unfinished text, in place of
+     * the text between start and end, in a single edit. The entries that are not resolved to a
+     * contact are then looked up together.
+     */
+    private void insertPastedRecipients(List<RecipientEntry> entries, String remainder,
+            int start, int end) {
+        final SpannableStringBuilder builder = new SpannableStringBuilder();
+        final ArrayList<DrawableRecipientChip> unresolved = new ArrayList<DrawableRecipientChip>();
+        for (RecipientEntry entry : entries) {
+            final String displayText = createAddressText(entry);
+            if (TextUtils.isEmpty(displayText)) {
+                continue;
+            }
+            DrawableRecipientChip chip = null;
+            if (!mNoChips) {
+                try {
+                    // Only the chips on screen need to be drawn now.
+                    chip = createLazyChip(entry);
+                } catch (NullPointerException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    continue;
+                }
+            }
+            final int chipStart = builder.length();
+            builder.append(displayText);
+            if (chip != null) {
+                // Always leave a blank space at the end of a chip.
+                builder.setSpan(chip, chipStart, builder.length() - 1,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                chip.setOriginalText(displayText);
+                if (RecipientEntry.isCreatedRecipient(entry.getContactId())) {
+                    unresolved.add(chip);
+                }
+            }
+            onChipCreated(entry);
+        }
+        if (remainder != null) {
+            builder.append(remainder);
+        }
+        if (builder.length() == 0) {
+            return;
+        }
+
+        if (mTextWatcher != null) {
+            removeTextChangedListener(mTextWatcher);
+        }
+        getText().replace(start, end, builder);
+        if (!unresolved.isEmpty()) {
+            // Perform reverse lookups on the pasted contacts.
+            new IndividualReplacementTask().execute(unresolved);
+        }
+        mHandler.post(mAddTextWatcher);
+    }
+
+    @Override
+    public boolean onTextContextMenuItem(int id) {
+        if (id == android.R.id.paste) {
+            ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(
+                    Context.CLIPBOARD_SERVICE);
+            handlePasteClip(clipboard.getPrimaryClip());
+            return true;
+        }
+        return super.onTextContextMenuItem(id);
+    }
+
+    // Visible for testing.
     /* package */int movePastTerminators(int tokenEnd) {
         if (tokenEnd >= length()) {
             return tokenEnd;
@@ -2646,12 +3082,17 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     }
 
     private class RecipientReplacementTask extends AsyncTask<Void, Void, Void> {
+        /** The chips to look up, taken on the UI thread before the lookup starts. */
+        private final ArrayList<DrawableRecipientChip> mRecipients =
+                new ArrayList<DrawableRecipientChip>();
+
         private DrawableRecipientChip createFreeChip(RecipientEntry entry) {
             try {
                 if (mNoChips) {
                     return null;
                 }
-                return constructChipSpan(entry, false);
+                // Only the chips on screen need to be drawn now.
+                return createLazyChip(entry);
             } catch (NullPointerException e) {
                 Log.e(TAG, e.getMessage(), e);
                 return null;
@@ -2685,6 +3126,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             }
 
             processReplacements(originalRecipients, replacements);
+            mReplacementBatch.apply();
+
+            Collections.addAll(mRecipients, getSortedRecipients());
+            if (mRemovedSpans != null) {
+                mRecipients.addAll(mRemovedSpans);
+            }
         }
 
         @Override
@@ -2695,16 +3142,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             // For each chip in the list, look up the matching contact.
             // If there is a match, replace that chip with the matching
             // chip.
-            final ArrayList<DrawableRecipientChip> recipients =
-                    new ArrayList<DrawableRecipientChip>();
-            //noinspection ResourceType
-            DrawableRecipientChip[] existingChips = getSortedRecipients();
-            for (int i = 0; i < existingChips.length; i++) {
-                recipients.add(existingChips[i]);
-            }
-            if (mRemovedSpans != null) {
-                recipients.addAll(mRemovedSpans);
-            }
+            final ArrayList<DrawableRecipientChip> recipients = mRecipients;
             ArrayList<String> addresses = new ArrayList<String>();
             DrawableRecipientChip chip;
             for (int i = 0; i < recipients.size(); i++) {
@@ -2721,15 +3159,18 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                         public void matchesFound(Map<String, RecipientEntry> entries) {
                             final ArrayList<DrawableRecipientChip> replacements =
                                     new ArrayList<DrawableRecipientChip>();
-                            for (final DrawableRecipientChip temp : recipients) {
+                            for (final DrawableRecipientChip chip : recipients) {
+                                final DrawableRecipientChip temp = chip != null
+                                        ? mReplacementBatch.resolve(chip) : null;
                                 RecipientEntry entry = null;
-                                if (temp != null && RecipientEntry.isCreatedRecipient(
-                                        temp.getEntry().getContactId())
-                                        && getSpannable().getSpanStart(temp) != -1) {
-                                    // Replace this.
+                                if (temp != null && getSpannable().getSpanStart(temp) != -1) {
                                     entry = createValidatedEntry(
-                                            entries.get(tokenizeAddress(temp.getEntry()
+                                            entries.get(tokenizeAddress(chip.getEntry()
                                                     .getDestination())));
+                                    if (entry != null
+                                            && !isReplacementFor(temp.getEntry(), entry)) {
+                                        entry = null;
+                                    }
                                 }
                                 if (entry != null) {
                                     replacements.add(createFreeChip(entry));
@@ -2745,16 +3186,17 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                             final List<DrawableRecipientChip> replacements =
                                     new ArrayList<DrawableRecipientChip>(unfoundAddresses.size());
 
-                            for (final DrawableRecipientChip temp : recipients) {
+                            for (final DrawableRecipientChip chip : recipients) {
+                                final DrawableRecipientChip temp = chip != null
+                                        ? mReplacementBatch.resolve(chip) : null;
                                 if (temp != null && RecipientEntry.isCreatedRecipient(
-                                        temp.getEntry().getContactId())
-                                        && getSpannable().getSpanStart(temp) != -1) {
-                                    if (unfoundAddresses.contains(
-                                            temp.getEntry().getDestination())) {
-                                        replacements.add(createFreeChip(temp.getEntry()));
-                                    } else {
-                                        replacements.add(null);
-                                    }
+                                        chip.getEntry().getContactId())
+                                        && getSpannable().getSpanStart(temp) != -1
+                                        && unfoundAddresses.contains(
+                                                chip.getEntry().getDestination())) {
+                                    // Also undoes a match from the persistent lookup cache
+                                    // that no longer resolves.
+                                    replacements.add(createFreeChip(chip.getEntry()));
                                 } else {
                                     replacements.add(null);
                                 }
@@ -2769,60 +3211,257 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         private void processReplacements(final List<DrawableRecipientChip> recipients,
                 final List<DrawableRecipientChip> replacements) {
             if (replacements != null && replacements.size() > 0) {
-                final Runnable runnable = new Runnable() {
-                    @Override
-                    public void run() {
-                        final Editable text = new SpannableStringBuilder(getText());
-                        int i = 0;
-                        for (final DrawableRecipientChip chip : recipients) {
-                            final DrawableRecipientChip replacement = replacements.get(i);
-                            if (replacement != null) {
-                                final RecipientEntry oldEntry = chip.getEntry();
-                                final RecipientEntry newEntry = replacement.getEntry();
-                                final boolean isBetter =
-                                        RecipientAlternatesAdapter.getBetterRecipient(
-                                                oldEntry, newEntry) == newEntry;
-
-                                if (isBetter) {
-                                    // Find the location of the chip in the text currently shown.
-                                    final int start = text.getSpanStart(chip);
-                                    if (start != -1) {
-                                        // Replacing the entirety of what the chip represented,
-                                        // including the extra space dividing it from other chips.
-                                        final int end =
-                                                Math.min(text.getSpanEnd(chip) + 1, text.length());
-                                        text.removeSpan(chip);
-                                        // Make sure we always have just 1 space at the end to
-                                        // separate this chip from the next chip.
-                                        final SpannableString displayText =
-                                                new SpannableString(createAddressText(
-                                                        replacement.getEntry()).trim() + " ");
-                                        displayText.setSpan(replacement, 0,
-                                                displayText.length() - 1,
-                                                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                                        // Replace the old text we found with with the new display
-                                        // text, which now may also contain the display name of the
-                                        // recipient.
-                                        text.replace(start, end, displayText);
-                                        replacement.setOriginalText(displayText.toString());
-                                        replacements.set(i, null);
-
-                                        recipients.set(i, replacement);
-                                    }
-                                }
-                            }
-                            i++;
-                        }
-                        setText(text);
+                int i = 0;
+                for (final DrawableRecipientChip chip : recipients) {
+                    final DrawableRecipientChip replacement = replacements.get(i);
+                    if (replacement != null) {
+                        mReplacementBatch.add(chip, replacement);
                     }
-                };
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects chip replacements resolved by the lookup tasks and applies all replacements
+     * gathered during a frame as a single edit of the text, with the text watcher removed.
+     * Replacing chips one at a time would re-layout the text and notify the watchers once per
+     * chip. {@link #add} may be called from any thread.
+     */
+    private class ChipReplacementBatch {
+        private final class Replacement {
+            final DrawableRecipientChip original;
+            final RecipientEntry entry;
+            /** Prebuilt span for {@link #entry}, or null to build it when the batch is applied. */
+            final DrawableRecipientChip chip;
+
+            Replacement(DrawableRecipientChip original, RecipientEntry entry,
+                    DrawableRecipientChip chip) {
+                this.original = original;
+                this.entry = entry;
+                this.chip = chip;
+            }
+        }
+
+        /** Guarded by {@code this}. */
+        private ArrayList<Replacement> mPending = new ArrayList<Replacement>();
+        /** Guarded by {@code this}. */
+        private boolean mScheduled;
+        /**
+         * Chips that have been replaced, mapped to the chip that replaced them, so that
+         * replacements resolved for a chip that is no longer in the text still find it.
+         * Guarded by {@code this}.
+         */
+        private final Map<DrawableRecipientChip, DrawableRecipientChip> mForwarding =
+                new WeakHashMap<DrawableRecipientChip, DrawableRecipientChip>();
 
-                if (Looper.myLooper() == Looper.getMainLooper()) {
-                    runnable.run();
+        private final Runnable mApplyRunnable = new Runnable() {
+            @Override
+            public void run() {
+                apply();
+            }
+        };
+
+        private final Runnable mScheduleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (mAttachedToWindow) {
+                    postOnAnimation(mApplyRunnable);
                 } else {
-                    mHandler.post(runnable);
+                    mHandler.post(mApplyRunnable);
                 }
             }
+        };
+
+        /** Queues the replacement of {@code original} by a chip for {@code entry}. */
+        public void add(DrawableRecipientChip original, RecipientEntry entry) {
+            add(new Replacement(original, entry, null));
+        }
+
+        /** Queues the replacement of {@code original} by a chip that has already been built. */
+        public void add(DrawableRecipientChip original, DrawableRecipientChip replacement) {
+            add(new Replacement(original, replacement.getEntry(), replacement));
+        }
+
+        private void add(Replacement replacement) {
+            synchronized (this) {
+                mPending.add(replacement);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mHandler.post(mScheduleRunnable);
+        }
+
+        /** Returns the chip currently standing in for {@code chip} in the text. */
+        public synchronized DrawableRecipientChip resolve(DrawableRecipientChip chip) {
+            DrawableRecipientChip replacement = mForwarding.get(chip);
+            while (replacement != null) {
+                chip = replacement;
+                replacement = mForwarding.get(chip);
+            }
+            return chip;
+        }
+
+        /** Applies all queued replacements now. Must be called on the UI thread. */
+        public void apply() {
+            final ArrayList<Replacement> pending;
+            synchronized (this) {
+                pending = mPending;
+                mPending = new ArrayList<Replacement>();
+                mScheduled = false;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            // Settle on one replacement per chip currently in the text.
+            final Editable editable = getText();
+            final Map<DrawableRecipientChip, Replacement> byChip =
+                    new HashMap<DrawableRecipientChip, Replacement>();
+            for (Replacement replacement : pending) {
+                final DrawableRecipientChip current = resolve(replacement.original);
+                if (editable.getSpanStart(current) == -1
+                        || !isReplacementFor(current.getEntry(), replacement.entry)) {
+                    continue;
+                }
+                final Replacement other = byChip.get(current);
+                final RecipientEntry base = other != null ? other.entry : current.getEntry();
+                // Of several matches, the better one wins; a resolved entry is only replaced
+                // by a later result that revalidates it.
+                final boolean better = RecipientEntry.isCreatedRecipient(base.getContactId())
+                        ? RecipientAlternatesAdapter.getBetterRecipient(base, replacement.entry)
+                                == replacement.entry
+                        : isReplacementFor(base, replacement.entry);
+                if (better) {
+                    byChip.put(current, replacement);
+                }
+            }
+            if (byChip.isEmpty()) {
+                return;
+            }
+
+            // Edit a copy of the affected region only, from the last chip backwards so that the
+            // offsets of the chips before it stay valid, and put it back with a single replace.
+            final List<DrawableRecipientChip> chips =
+                    new ArrayList<DrawableRecipientChip>(byChip.keySet());
+            Collections.sort(chips, new Comparator<DrawableRecipientChip>() {
+                @Override
+                public int compare(DrawableRecipientChip first, DrawableRecipientChip second) {
+                    return editable.getSpanStart(second) - editable.getSpanStart(first);
+                }
+            });
+            final int regionStart = editable.getSpanStart(chips.get(chips.size() - 1));
+            final int regionEnd = getReplacedEnd(editable, chips.get(0));
+            final SpannableStringBuilder region =
+                    new SpannableStringBuilder(editable, regionStart, regionEnd);
+
+            boolean wasSelected = false;
+            for (DrawableRecipientChip current : chips) {
+                final int start = editable.getSpanStart(current) - regionStart;
+                final int end = getReplacedEnd(editable, current) - regionStart;
+                final CharSequence chipText = createReplacementText(byChip.get(current));
+                if (chipText == null) {
+                    continue;
+                }
+                region.removeSpan(current);
+                region.replace(start, end, chipText);
+                if (current == mSelectedChip) {
+                    wasSelected = true;
+                    mSelectedChip = null;
+                }
+                final DrawableRecipientChip[] replacementChips = ((Spanned) chipText)
+                        .getSpans(0, chipText.length(), DrawableRecipientChip.class);
+                if (replacementChips.length > 0) {
+                    synchronized (this) {
+                        mForwarding.put(current, replacementChips[0]);
+                    }
+                }
+            }
+
+            removeTextChangedListener(mTextWatcher);
+            beginBatchEdit();
+            try {
+                editable.replace(regionStart, regionEnd, region);
+            } finally {
+                endBatchEdit();
+                mHandler.post(mAddTextWatcher);
+            }
+            setCursorVisible(true);
+            if (wasSelected) {
+                clearSelectedChip();
+            }
+        }
+
+        /**
+         * Returns the end of the text replaced along with the chip: the chip and the spaces
+         * separating it from the next one.
+         */
+        private int getReplacedEnd(Spanned text, DrawableRecipientChip chip) {
+            int end = text.getSpanEnd(chip);
+            while (end < text.length() && text.charAt(end) == ' ') {
+                end++;
+            }
+            return end;
+        }
+
+        private CharSequence createReplacementText(Replacement replacement) {
+            if (replacement.chip == null) {
+                return createChip(replacement.entry, false);
+            }
+            // Make sure we always have just 1 space at the end to separate this chip from the
+            // next chip.
+            final SpannableString displayText = new SpannableString(
+                    createAddressText(replacement.entry).trim() + " ");
+            displayText.setSpan(replacement.chip, 0, displayText.length() - 1,
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            replacement.chip.setOriginalText(displayText.toString());
+            return displayText;
+        }
+    }
+
+    /**
+     * Creates the entries of pasted tokens in the background, validating them, and then
+     * inserts their chips.
+     */
+    private class PasteTask extends AsyncTask<Void, Void, List<RecipientEntry>> {
+        private final List<String> mTokens;
+        private final String mRemainder;
+        // Follows the text to replace through the edits made while the entries are created.
+        private final Object mPlaceholder = new NoCopySpan.Concrete();
+
+        PasteTask(List<String> tokens, String remainder, int start, int end) {
+            mTokens = tokens;
+            mRemainder = remainder;
+            getText().setSpan(mPlaceholder, start, end, Spanned.SPAN_MARK_MARK);
+        }
+
+        @Override
+        protected List<RecipientEntry> doInBackground(Void... params) {
+            final List<RecipientEntry> entries = new ArrayList<RecipientEntry>(mTokens.size());
+            for (String token : mTokens) {
+                final RecipientEntry entry = createTokenizedEntry(token);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        protected void onPostExecute(List<RecipientEntry> entries) {
+            mPasteTask = null;
+            final Editable editable = getText();
+            int start = editable.getSpanStart(mPlaceholder);
+            int end = editable.getSpanEnd(mPlaceholder);
+            editable.removeSpan(mPlaceholder);
+            if (start < 0) {
+                // The text was replaced in the meantime.
+                start = end = editable.length();
+            }
+            insertPastedRecipients(entries, mRemainder, start, end);
         }
     }
 
@@ -2850,22 +3489,17 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                         @Override
                         public void matchesFound(Map<String, RecipientEntry> entries) {
                             for (final DrawableRecipientChip temp : originalRecipients) {
-                                if (RecipientEntry.isCreatedRecipient(temp.getEntry()
-                                        .getContactId())
-                                        && getSpannable().getSpanStart(temp) != -1) {
-                                    // Replace this.
+                                final DrawableRecipientChip current =
+                                        mReplacementBatch.resolve(temp);
+                                if (getSpannable().getSpanStart(current) != -1) {
                                     final String address = tokenizeAddress(
                                             temp.getEntry().getDestination());
                                     if (!TextUtils.isEmpty(address)) {
                                         final RecipientEntry entry = createValidatedEntry(entries
                                                 .get(address.toLowerCase()));
-                                        if (entry != null) {
-                                            mHandler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    replaceChip(temp, entry);
-                                                }
-                                            });
+                                        if (entry != null
+                                                && isReplacementFor(current.getEntry(), entry)) {
+                                            mReplacementBatch.add(temp, entry);
                                         }
                                     }
                                 }
@@ -2874,7 +3508,20 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
                         @Override
                         public void matchesNotFound(final Set<String> unfoundAddresses) {
-                            // No action required
+                            // Undo matches from the persistent lookup cache that no longer
+                            // resolve.
+                            for (final DrawableRecipientChip temp : originalRecipients) {
+                                final DrawableRecipientChip current =
+                                        mReplacementBatch.resolve(temp);
+                                if (current != temp
+                                        && RecipientEntry.isCreatedRecipient(
+                                                temp.getEntry().getContactId())
+                                        && getSpannable().getSpanStart(current) != -1
+                                        && unfoundAddresses.contains(
+                                                temp.getEntry().getDestination())) {
+                                    mReplacementBatch.add(temp, temp.getEntry());
+                                }
+                            }
                         }
                     });
             return null;
@@ -3111,6 +3758,101 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         }
     }
 
+    /**
+     * Replaces the contents of the field with chips for the given entries, e.g. the
+     * recipients of a draft, in a single edit. If the field is shrunk, chips past
+     * {@link #CHIP_LIMIT} are hidden behind the "more" chip. Only entries that are not
+     * resolved to a contact yet are looked up. If the view has not been laid out yet, the
+     * chips are created once it is.
+     */
+    public void setRecipients(List<RecipientEntry> entries) {
+        cancelPaste();
+        if (getViewWidth() <= 0) {
+            // Chips are sized to fit the view, so wait until it has a width.
+            mPendingRecipients = new ArrayList<RecipientEntry>(entries);
+            return;
+        }
+        mPendingRecipients = null;
+
+        // Drop whatever was pending for the text we replace.
+        if (mTextWatcher != null) {
+            removeTextChangedListener(mTextWatcher);
+        }
+        mHandler.removeCallbacks(mHandlePendingChips);
+        mChipifier.cancel();
+        synchronized (mPendingChips) {
+            mPendingChipsCount = 0;
+            mPendingChips.clear();
+        }
+        if (mIndividualReplacements != null) {
+            mIndividualReplacements.cancel(true);
+            mIndividualReplacements = null;
+        }
+        if (mSelectedChip != null) {
+            clearSelectedChip();
+        }
+        mMoreChip = null;
+        mRemovedSpans = null;
+        mTemporaryRecipients = null;
+
+        final boolean shrink = mShouldShrink && !hasFocus();
+        final SpannableStringBuilder builder = new SpannableStringBuilder();
+        final ArrayList<DrawableRecipientChip> unresolvedVisible =
+                new ArrayList<DrawableRecipientChip>();
+        final ArrayList<DrawableRecipientChip> unresolvedHidden =
+                new ArrayList<DrawableRecipientChip>();
+        int chipCount = 0;
+        for (RecipientEntry entry : entries) {
+            final String displayText = createAddressText(entry);
+            if (TextUtils.isEmpty(displayText)) {
+                continue;
+            }
+            DrawableRecipientChip chip = null;
+            final boolean visible = !shrink || chipCount < CHIP_LIMIT;
+            if (!mNoChips) {
+                try {
+                    chip = visible ? constructChipSpan(entry, false) : createLazyChip(entry);
+                } catch (NullPointerException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    continue;
+                }
+            }
+            final int start = builder.length();
+            builder.append(displayText);
+            if (chip != null) {
+                // Always leave a blank space at the end of a chip.
+                builder.setSpan(chip, start, builder.length() - 1,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                chip.setOriginalText(displayText);
+                if (!RecipientEntry.isCreatedRecipient(entry.getContactId())) {
+                    // Already resolved; no need to look it up again.
+                } else if (visible) {
+                    unresolvedVisible.add(chip);
+                } else {
+                    unresolvedHidden.add(chip);
+                }
+            }
+            chipCount++;
+            onChipCreated(entry);
+        }
+
+        setText(builder);
+        setSelection(getText().length());
+        if (shrink) {
+            createMoreChip();
+        }
+
+        if (!unresolvedVisible.isEmpty()) {
+            mIndividualReplacements = new IndividualReplacementTask();
+            mIndividualReplacements.execute(unresolvedVisible);
+        }
+        if (!unresolvedHidden.isEmpty()) {
+            // Looked up when the field is expanded.
+            mTemporaryRecipients = unresolvedHidden;
+        }
+        mHandler.post(mAddTextWatcher);
+    }
+
     /**
      * Remove all chips matching the given RecipientEntry.
      */
@@ -3131,7 +3873,146 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         mAlternatePopupAnchor = v;
     }
 
-    private static class ChipBitmapContainer {
+    /**
+     * Sets how chips are rendered, {@link #CHIP_RENDERING_BITMAP} or
+     * {@link #CHIP_RENDERING_DIRECT}. Only affects chips created afterwards.
+     */
+    public void setChipRendering(int chipRendering) {
+        mChipRendering = chipRendering;
+    }
+
+    public int getChipRendering() {
+        return mChipRendering;
+    }
+
+    /**
+     * Turns pending chips into chips, in the order they were appended, either all at once or
+     * a slice per frame, see {@link #handlePendingChips()}.
+     */
+    private class PendingChipsChipifier implements Choreographer.FrameCallback {
+        /** Leaves the rest of a 60 fps frame for drawing and input. */
+        private static final long SLICE_NANOS = 8 * 1000 * 1000;
+
+        private boolean mRunning;
+        /** Whether it was stopped by {@link #pause()}. */
+        private boolean mPaused;
+        /** The next pending chip. */
+        private int mNext;
+        /** The last chip created; the next pending chip is looked for after it. */
+        private DrawableRecipientChip mLastChip;
+
+        void reset() {
+            mNext = 0;
+            mLastChip = null;
+            mPaused = false;
+        }
+
+        boolean isRunning() {
+            return mRunning;
+        }
+
+        void start() {
+            mRunning = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void cancel() {
+            mPaused = false;
+            if (mRunning) {
+                Choreographer.getInstance().removeFrameCallback(this);
+                mRunning = false;
+            }
+        }
+
+        /** Stops chipifying until {@link #resume()} is called. */
+        void pause() {
+            final boolean running = mRunning;
+            cancel();
+            mPaused = running;
+        }
+
+        void resume() {
+            if (mPaused) {
+                mPaused = false;
+                start();
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            final boolean done;
+            final int chipified;
+            final int total;
+            synchronized (mPendingChips) {
+                done = chipify(System.nanoTime() + SLICE_NANOS);
+                chipified = mNext;
+                total = mPendingChips.size();
+                if (done) {
+                    mRunning = false;
+                    finishPendingChips();
+                }
+            }
+            if (!done) {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+            if (mChipificationListener != null) {
+                mChipificationListener.onChipificationProgress(chipified, total);
+            }
+        }
+
+        /**
+         * Turns pending chips into chips until all are done, returning true, or the deadline
+         * passes. Must be called with the lock on {@link #mPendingChips} held.
+         */
+        boolean chipify(long deadlineNanos) {
+            final Editable editable = getText();
+            // Each pending chip is searched for after the previous one, in a single pass over
+            // the text. Setting spans does not change the text, so it only has to be copied
+            // once per slice. The text may have been edited between slices, so the search
+            // resumes after the last chip rather than at a remembered offset.
+            final String text = editable.toString();
+            int searchStart = mLastChip != null ? Math.max(editable.getSpanEnd(mLastChip), 0) : 0;
+            while (mNext < mPendingChips.size()) {
+                if (deadlineNanos != Long.MAX_VALUE && System.nanoTime() >= deadlineNanos) {
+                    return false;
+                }
+                final int i = mNext++;
+                String current = mPendingChips.get(i);
+                int tokenStart = text.indexOf(current, searchStart);
+                // Skip occurrences that are already chips, e.g. of a duplicate recipient.
+                while (tokenStart >= 0
+                        && alreadyHasChip(tokenStart, tokenStart + current.length() - 1)) {
+                    tokenStart = text.indexOf(current, tokenStart + current.length());
+                }
+                // Always leave a space at the end between tokens.
+                int tokenEnd = tokenStart + current.length() - 1;
+                if (tokenStart >= 0) {
+                    searchStart = tokenEnd;
+                    // When we have a valid token, include it with the token
+                    // to the left.
+                    if (tokenEnd < editable.length() - 2
+                            && editable.charAt(tokenEnd) == COMMIT_CHAR_COMMA) {
+                        tokenEnd++;
+                    }
+                    // Chips past the limit only reserve their space until they are on screen.
+                    final DrawableRecipientChip chip =
+                            createReplacementChip(tokenStart, tokenEnd, editable, i < CHIP_LIMIT);
+                    if (chip != null) {
+                        mLastChip = chip;
+                    }
+                }
+                mPendingChipsCount--;
+            }
+            return true;
+        }
+    }
+
+    /** Receives the avatar of a chip once it is loaded, possibly on a background thread. */
+    private interface ChipIconTarget {
+        void setIcon(Bitmap icon);
+    }
+
+    private class ChipBitmapContainer implements ChipIconTarget {
         Bitmap bitmap;
         // information used for positioning the loaded icon
         boolean loadIcon = true;
@@ -3139,11 +4020,185 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         float top;
         float right;
         float bottom;
+        /** Where to share the bitmap once its avatar is drawn, or null. */
+        ChipBitmapKey cacheKey;
+
+        @Override
+        public void setIcon(Bitmap icon) {
+            drawIcon(this, icon);
+            // The default photo stands in for a failed load; a later load may succeed.
+            if (cacheKey != null && icon != mDefaultContactPhoto) {
+                sChipBitmapCache.put(cacheKey, bitmap);
+            }
+        }
+    }
+
+    /** Identifies a chip bitmap, see {@link #getChipBitmapCacheKey}. */
+    private static final class ChipBitmapKey {
+        private final String mAttributes;
+        // Held, rather than hashed, so that it stays distinct from other typefaces.
+        private final Typeface mTypeface;
+
+        ChipBitmapKey(String attributes, Typeface typeface) {
+            mAttributes = attributes;
+            mTypeface = typeface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChipBitmapKey)) {
+                return false;
+            }
+            final ChipBitmapKey other = (ChipBitmapKey) o;
+            return mAttributes.equals(other.mAttributes)
+                    && (mTypeface == null ? other.mTypeface == null
+                            : mTypeface.equals(other.mTypeface));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mAttributes.hashCode() + (mTypeface != null ? mTypeface.hashCode() : 0);
+        }
+    }
+
+    /**
+     * The contents of a lazy chip, see {@link #createLazyChip(RecipientEntry)}. It has the size
+     * of the chip, but only draws it while it is materialized. Only used on the UI thread.
+     */
+    private class LazyChipDrawable extends Drawable {
+        private final RecipientEntry mEntry;
+        DrawableRecipientChip mChip;
+        private Drawable mContent;
+
+        LazyChipDrawable(RecipientEntry entry, int width, int height) {
+            mEntry = entry;
+            setBounds(0, 0, width, height);
+        }
+
+        /** Creates the contents of the chip. Returns false if they already existed. */
+        boolean materialize() {
+            if (mContent != null) {
+                return false;
+            }
+            mContent = createChipContent(mEntry, false);
+            return true;
+        }
+
+        void release() {
+            mContent = null;
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (mContent != null) {
+                mContent.draw(canvas);
+            }
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return getBounds().width();
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return getBounds().height();
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter cf) {
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
+    /** The measurements of a chip, relative to its top left corner. */
+    private static class ChipLayout {
+        int width;
+        int height;
+        CharSequence text;
+        float textX;
+        float textY;
+        Drawable background;
+        int backgroundColor;
+        final RectF bounds = new RectF();
+        final RectF iconBounds = new RectF();
+    }
+
+    /**
+     * A chip that draws its background, text and avatar straight onto the canvas it is drawn
+     * on, from measurements taken once when it is created, instead of holding a bitmap.
+     */
+    private class ChipDrawable extends Drawable implements ChipIconTarget {
+        private final ChipLayout mLayout;
+        private final int mTextColor;
+        private volatile Bitmap mIcon;
+        private final RectF mIconSrc = new RectF();
+
+        ChipDrawable(ChipLayout layout, int textColor) {
+            mLayout = layout;
+            mLayout.bounds.set(0, 0, layout.width, layout.height);
+            mTextColor = textColor;
+            setBounds(0, 0, layout.width, layout.height);
+        }
+
+        @Override
+        public void setIcon(Bitmap icon) {
+            if (icon != null) {
+                mIcon = icon;
+            }
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            final TextPaint paint = mChipTextPaint;
+            paint.set(getPaint());
+            paint.setTextSize(mChipFontSize);
+            paint.setColor(mTextColor);
+            drawChipBackgroundAndText(canvas, mLayout, paint);
+            final Bitmap icon = mIcon;
+            if (icon == null) {
+                return;
+            }
+            mIconSrc.set(0, 0, icon.getWidth(), icon.getHeight());
+            drawIconOnCanvas(icon, canvas, mIconSrc, mLayout.iconBounds);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mLayout.width;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mLayout.height;
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter cf) {
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
     }
 
     /**
      * Get the current max chips limits.
-     * @return The value used to cap the number of contacts that this field will tokenize.
+     * @return The number of contacts that this field will tokenize at once. More are
+     *         tokenized a slice per frame.
      */
     protected int getMaxChipsParsed() {
         return mMaxChipsParsed;
@@ -3151,8 +4206,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     /**
      * Set the current max chips limit.
-     * @param maxChipsParsed - This value will cap the number of contacts that this field will
-     *                       tokenize.
+     * @param maxChipsParsed - The number of contacts that this field will tokenize at once.
+     *                       More are tokenized a slice per frame.
      */
     protected void setMaxChipsParsed(int maxChipsParsed) {
         mMaxChipsParsed = maxChipsParsed;
@@ -16,6 +16,8 @@
 
 package com.android.ex.chips;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.DisplayNameSources;
@@ -76,6 +78,9 @@ public class RecipientEntry {
      */
     private byte[] mPhotoBytes;
 
+    /** The decoded photo, ready to be drawn. Set along with {@link #mPhotoBytes}. */
+    private Bitmap mPhotoBitmap;
+
     /** See {@link android.provider.ContactsContract.ContactsColumns#LOOKUP_KEY} */
     private final String mLookupKey;
 
@@ -229,6 +234,10 @@ public class RecipientEntry {
 
     /** This can be called outside main Looper thread. */
     public synchronized void setPhotoBytes(byte[] photoBytes) {
+        if (photoBytes != mPhotoBytes) {
+            // The decoded photo no longer matches.
+            mPhotoBitmap = null;
+        }
         mPhotoBytes = photoBytes;
     }
 
@@ -237,6 +246,31 @@ public class RecipientEntry {
         return mPhotoBytes;
     }
 
+    /** This can be called outside main Looper thread. */
+    public synchronized void setPhotoBitmap(Bitmap photoBitmap) {
+        mPhotoBitmap = photoBitmap;
+    }
+
+    /**
+     * Returns the photo decoded at the size it is displayed at, or null if it has not been
+     * decoded. This can be called outside main Looper thread.
+     */
+    public synchronized Bitmap getPhotoBitmap() {
+        return mPhotoBitmap;
+    }
+
+    /**
+     * Returns the decoded photo, or null if there is none. Photos loaded by
+     * {@link DefaultPhotoManager} are already decoded, at avatar size; photo bytes provided
+     * otherwise are decoded here, once. This can be called outside main Looper thread.
+     */
+    public synchronized Bitmap decodePhotoBitmap() {
+        if (mPhotoBitmap == null && mPhotoBytes != null && mPhotoBytes.length > 0) {
+            mPhotoBitmap = BitmapFactory.decodeByteArray(mPhotoBytes, 0, mPhotoBytes.length);
+        }
+        return mPhotoBitmap;
+    }
+
     public boolean isSeparator() {
         return mIsDivider;
     }
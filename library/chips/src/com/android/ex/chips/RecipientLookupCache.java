@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.chips;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.ContactsContract.DisplayNameSources;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent cache of resolved recipients, keyed by query type and normalized address, so
+ * that chips of recipients that were resolved before, e.g. when a draft is reopened, can be
+ * shown resolved without waiting for the contacts provider.
+ *
+ * Entries are stored in an app-private database and only the {@link #MAX_ENTRIES} most
+ * recently used are kept. Callers are expected to revalidate what they read from here.
+ * All methods do disk I/O and must not be called on the UI thread.
+ */
+class RecipientLookupCache extends SQLiteOpenHelper {
+    private static final String TAG = "RecipientLookupCache";
+
+    private static final boolean DEBUG = false;
+
+    private static final String DATABASE_NAME = "chips_recipients.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private static final String TABLE = "recipients";
+
+    private static final class Columns {
+        static final String QUERY_TYPE = "query_type";
+        static final String ADDRESS = "address";
+        static final String DISPLAY_NAME = "display_name";
+        static final String DESTINATION = "destination";
+        static final String DESTINATION_TYPE = "destination_type";
+        static final String DESTINATION_LABEL = "destination_label";
+        static final String CONTACT_ID = "contact_id";
+        static final String DIRECTORY_ID = "directory_id";
+        static final String DATA_ID = "data_id";
+        static final String PHOTO_THUMBNAIL_URI = "photo_thumbnail_uri";
+        static final String LOOKUP_KEY = "lookup_key";
+        static final String LAST_ACCESS = "last_access";
+    }
+
+    private static final String[] PROJECTION = new String[] {
+        Columns.ADDRESS,             // 0
+        Columns.DISPLAY_NAME,        // 1
+        Columns.DESTINATION,         // 2
+        Columns.DESTINATION_TYPE,    // 3
+        Columns.DESTINATION_LABEL,   // 4
+        Columns.CONTACT_ID,          // 5
+        Columns.DIRECTORY_ID,        // 6
+        Columns.DATA_ID,             // 7
+        Columns.PHOTO_THUMBNAIL_URI, // 8
+        Columns.LOOKUP_KEY,          // 9
+    };
+
+    private static RecipientLookupCache sInstance;
+
+    private RecipientLookupCache(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    public static synchronized RecipientLookupCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new RecipientLookupCache(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + Columns.QUERY_TYPE + " INTEGER NOT NULL, "
+                + Columns.ADDRESS + " TEXT NOT NULL, "
+                + Columns.DISPLAY_NAME + " TEXT, "
+                + Columns.DESTINATION + " TEXT, "
+                + Columns.DESTINATION_TYPE + " INTEGER, "
+                + Columns.DESTINATION_LABEL + " TEXT, "
+                + Columns.CONTACT_ID + " INTEGER, "
+                + Columns.DIRECTORY_ID + " INTEGER, "
+                + Columns.DATA_ID + " INTEGER, "
+                + Columns.PHOTO_THUMBNAIL_URI + " TEXT, "
+                + Columns.LOOKUP_KEY + " TEXT, "
+                + Columns.LAST_ACCESS + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + Columns.QUERY_TYPE + ", " + Columns.ADDRESS + "))");
+        db.execSQL("CREATE INDEX " + TABLE + "_" + Columns.LAST_ACCESS + " ON " + TABLE
+                + " (" + Columns.LAST_ACCESS + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // It is only a cache.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Returns the cached entries for those of the given addresses that have one, keyed by
+     * address, and marks them as used.
+     */
+    public Map<String, RecipientEntry> get(int queryType, Collection<String> addresses) {
+        final HashMap<String, RecipientEntry> entries = new HashMap<String, RecipientEntry>();
+        if (addresses.isEmpty()) {
+            return entries;
+        }
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            final String[] chunk = new String[Math.min(
+                    RecipientAlternatesAdapter.LOOKUP_CHUNK_SIZE, addresses.size()) + 1];
+            chunk[0] = String.valueOf(queryType);
+            int chunkSize = 1;
+            final Iterator<String> iterator = addresses.iterator();
+            while (iterator.hasNext()) {
+                chunk[chunkSize++] = iterator.next();
+                if (chunkSize == chunk.length || !iterator.hasNext()) {
+                    readChunk(db, chunkSize == chunk.length
+                            ? chunk : Arrays.copyOf(chunk, chunkSize), entries);
+                    chunkSize = 1;
+                }
+            }
+            if (!entries.isEmpty()) {
+                touch(db, queryType, entries.keySet());
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not read the recipient cache", e);
+        }
+        if (DEBUG) {
+            Log.d(TAG, entries.size() + " of " + addresses.size() + " addresses cached");
+        }
+        return entries;
+    }
+
+    /** Stores the given resolved entries, replacing what was cached for their addresses. */
+    public void put(int queryType, Map<String, RecipientEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            final long now = System.currentTimeMillis();
+            db.beginTransaction();
+            try {
+                final ContentValues values = new ContentValues();
+                for (Map.Entry<String, RecipientEntry> mapEntry : entries.entrySet()) {
+                    final RecipientEntry entry = mapEntry.getValue();
+                    if (entry == null || RecipientEntry.isCreatedRecipient(entry.getContactId())) {
+                        continue;
+                    }
+                    values.clear();
+                    values.put(Columns.QUERY_TYPE, queryType);
+                    values.put(Columns.ADDRESS, mapEntry.getKey());
+                    values.put(Columns.DISPLAY_NAME, entry.getDisplayName());
+                    values.put(Columns.DESTINATION, entry.getDestination());
+                    values.put(Columns.DESTINATION_TYPE, entry.getDestinationType());
+                    values.put(Columns.DESTINATION_LABEL, entry.getDestinationLabel());
+                    values.put(Columns.CONTACT_ID, entry.getContactId());
+                    values.put(Columns.DIRECTORY_ID, entry.getDirectoryId());
+                    values.put(Columns.DATA_ID, entry.getDataId());
+                    values.put(Columns.PHOTO_THUMBNAIL_URI, entry.getPhotoThumbnailUri() != null
+                            ? entry.getPhotoThumbnailUri().toString() : null);
+                    values.put(Columns.LOOKUP_KEY, entry.getLookupKey());
+                    values.put(Columns.LAST_ACCESS, now);
+                    db.insertWithOnConflict(TABLE, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                trim(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not write the recipient cache", e);
+        }
+    }
+
+    /** Drops the cached entries of addresses that no longer resolve. */
+    public void remove(int queryType, Collection<String> addresses) {
+        if (addresses.isEmpty()) {
+            return;
+        }
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final String[] args = new String[2];
+                args[0] = String.valueOf(queryType);
+                for (String address : addresses) {
+                    args[1] = address;
+                    db.delete(TABLE, Columns.QUERY_TYPE + "=? AND " + Columns.ADDRESS + "=?",
+                            args);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not write the recipient cache", e);
+        }
+    }
+
+    /** Drops all cached entries, leaving nothing of them in the database file. */
+    public void clear() {
+        try {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.delete(TABLE, null, null);
+            db.execSQL("VACUUM");
+        } catch (SQLException e) {
+            Log.w(TAG, "Could not clear the recipient cache", e);
+        }
+    }
+
+    /** Reads one chunk; {@code args} holds the query type followed by the addresses. */
+    private static void readChunk(SQLiteDatabase db, String[] args,
+            Map<String, RecipientEntry> entries) {
+        final Cursor c = db.query(TABLE, PROJECTION, Columns.QUERY_TYPE + "=? AND "
+                + Columns.ADDRESS + " IN (" + makePlaceholders(args.length - 1) + ")",
+                args, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                // The display name was already picked when the entry was first built; keep it.
+                entries.put(c.getString(0), RecipientEntry.constructTopLevelEntry(
+                        c.getString(1),
+                        DisplayNameSources.STRUCTURED_NAME,
+                        c.getString(2),
+                        c.getInt(3),
+                        c.getString(4),
+                        c.getLong(5),
+                        c.isNull(6) ? null : c.getLong(6),
+                        c.getLong(7),
+                        c.getString(8),
+                        true,
+                        c.getString(9)));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void touch(SQLiteDatabase db, int queryType, Collection<String> addresses) {
+        final ContentValues values = new ContentValues(1);
+        values.put(Columns.LAST_ACCESS, System.currentTimeMillis());
+        final String[] args = new String[2];
+        args[0] = String.valueOf(queryType);
+        db.beginTransaction();
+        try {
+            for (String address : addresses) {
+                args[1] = address;
+                db.update(TABLE, values,
+                        Columns.QUERY_TYPE + "=? AND " + Columns.ADDRESS + "=?", args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Evicts the least recently used entries beyond {@link #MAX_ENTRIES}. */
+    private static void trim(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE + " WHERE rowid IN (SELECT rowid FROM " + TABLE
+                + " ORDER BY " + Columns.LAST_ACCESS + " DESC LIMIT -1 OFFSET " + MAX_ENTRIES
+                + ")");
+    }
+
+    private static String makePlaceholders(int count) {
+        final StringBuilder builder = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('?');
+        }
+        return builder.toString();
+    }
+}
@@ -48,6 +48,7 @@ public class RecipientsEditor extends RecipientEditTextView {
 
     private int mLongPressedPosition = -1;
     private final RecipientsEditorTokenizer mTokenizer;
+    private final RecipientList mRecipientList;
     private char mLastSeparator = ',';
     private Runnable mOnSelectChipRunnable;
     private final AddressValidator mInternalValidator;
@@ -122,6 +123,12 @@ public class RecipientsEditor extends RecipientEditTextView {
             }
         });
 
+        // Registered after the watcher above, so that annotations of edited recipients are gone
+        // by the time the recipients are reparsed.
+        mRecipientList = new RecipientList();
+        mRecipientList.reparse(getText());
+        addTextChangedListener(mRecipientList);
+
         // Use the nicer and more detailed dropdown layout
         setDropdownChipLayouter(new DropdownChipLayouter(LayoutInflater.from(context), context) {
             @Override
@@ -167,19 +174,19 @@ public class RecipientsEditor extends RecipientEditTextView {
     }
 
     public int getRecipientCount() {
-        return mTokenizer.getNumbers().size();
+        return mRecipientList.size();
     }
 
     public List<String> getNumbers() {
-        return mTokenizer.getNumbers();
+        return new ArrayList<String>(mRecipientList.getNumbers());
     }
 
     public String getFirstRecipientNumber() {
-        return getNumbers().get(0);
+        return mRecipientList.getNumbers().get(0);
     }
 
     public String getExsitNumbers(){
-        return mTokenizer.getNumbersString();
+        return mRecipientList.getNumbersString();
     }
 
     private boolean isValidAddress(String number) {
@@ -251,30 +258,9 @@ public class RecipientsEditor extends RecipientEditTextView {
         return super.onTouchEvent(ev);
     }
 
-    /**
-     * Replaces all unicode(e.g. Arabic, Persian) digits with their decimal digit equivalents.
-     *
-     * Copied from PhoneNumberUtils.java to avoid API level 21 requirement.
-     *
-     * @param number the number to perform the replacement on.
-     * @return the replaced number.
-     */
-    private static String replaceUnicodeDigits(String number) {
-        StringBuilder normalizedDigits = new StringBuilder(number.length());
-        for (char c : number.toCharArray()) {
-            int digit = Character.digit(c, 10);
-            if (digit != -1) {
-                normalizedDigits.append(digit);
-            } else {
-                normalizedDigits.append(c);
-            }
-        }
-        return normalizedDigits.toString();
-    }
-
     private static String getNumberAt(Spanned sp, int start, int end, Context context) {
         String number = getFieldAt("number", sp, start, end, context);
-        number = replaceUnicodeDigits(number);
+        number = PhoneNumberNormalizer.replaceUnicodeDigits(number);
         if (!TextUtils.isEmpty(number)) {
             int pos = number.indexOf('<');
             if (pos >= 0 && pos < number.indexOf('>')) {
@@ -327,9 +313,6 @@ public class RecipientsEditor extends RecipientEditTextView {
     private class RecipientsEditorTokenizer
             implements MultiAutoCompleteTextView.Tokenizer {
 
-        private Spanned mPreviousSpanned;
-        private ArrayList<String> mPreviousSpannedNumbers;
-
         @Override
         public int findTokenStart(CharSequence text, int cursor) {
             int i = cursor;
@@ -396,75 +379,134 @@ public class RecipientsEditor extends RecipientEditTextView {
                 }
             }
         }
+    }
+
+    /** A recipient of the text; offsets are those of the current text. */
+    private static class Recipient {
+        int start;
+        /** The separator ending the recipient, or the end of the text. */
+        int end;
+        /** Where parsing resumes after this recipient: past its separator and annotation. */
+        int next;
+
+        Recipient(int start, int end, int next) {
+            this.start = start;
+            this.end = end;
+            this.next = next;
+        }
+    }
 
+    /**
+     * The recipients of the text, kept up to date as it changes. An edit only reparses the
+     * recipients from the one it touches up to where the parse meets an unchanged recipient
+     * again, and numbers are only extracted for recipients that were reparsed.
+     */
+    private class RecipientList implements TextWatcher {
+        private final ArrayList<Recipient> mRecipients = new ArrayList<Recipient>();
+        /** The numbers of {@link #mRecipients}, in the same order. */
+        private final ArrayList<String> mNumbers = new ArrayList<String>();
+
+        private boolean mChangePending;
+        private boolean mReparseAll;
+        private int mChangeStart;
+        private int mChangeBefore;
+        private int mChangeCount;
+
+        private String mNumbersString;
+        private boolean mNumbersStringValid;
+
+        public int size() {
+            return mRecipients.size();
+        }
+
+        /** Returns the numbers of the recipients; the list is not copied. */
         public List<String> getNumbers() {
-            Spanned sp = RecipientsEditor.this.getText();
+            return mNumbers;
+        }
 
-            if (mPreviousSpanned != null && mPreviousSpanned.equals(sp)) {
-                return (List<String>)mPreviousSpannedNumbers.clone();
+        public String getNumbersString() {
+            if (!mNumbersStringValid) {
+                final List<String> numbers = getNumbers();
+                if (numbers.isEmpty()) {
+                    mNumbersString = null;
+                } else {
+                    final StringBuilder sb = new StringBuilder();
+                    for (String number : numbers) {
+                        sb.append("'").append(number).append("',");
+                    }
+                    mNumbersString = sb.deleteCharAt(sb.length() - 1).toString();
+                }
+                mNumbersStringValid = true;
             }
+            return mNumbersString;
+        }
 
-            int len = sp.length();
-            ArrayList<String> list = new ArrayList<String>();
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
 
-            int start = 0;
-            int i = 0;
-            while (i < len + 1) {
-                char c;
-                if ((i == len) || ((c = sp.charAt(i)) == ',') || (c == ';')) {
-                    if (i > start) {
-                        list.add(getNumberAt(sp, start, i, getContext()));
-
-                        // calculate the recipients total length. This is so if
-                        // the name contains
-                        // commas or semis, we'll skip over the whole name to
-                        // the next
-                        // recipient, rather than parsing this single name into
-                        // multiple
-                        // recipients.
-                        int spanLen = getSpanLength(sp, start, i, getContext());
-                        if (spanLen > i) {
-                            i = spanLen;
-                        }
-                    }
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (mChangePending) {
+                // Another watcher changed the text again before we saw the first change.
+                mReparseAll = true;
+            }
+            mChangePending = true;
+            mChangeStart = start;
+            mChangeBefore = before;
+            mChangeCount = count;
+        }
 
-                    i++;
+        @Override
+        public void afterTextChanged(Editable s) {
+            if (!mChangePending) {
+                return;
+            }
+            if (mReparseAll) {
+                reparse(s);
+            } else {
+                update(s, mChangeStart, mChangeBefore, mChangeCount);
+            }
+            mChangePending = false;
+            mReparseAll = false;
+        }
 
-                    while ((i < len) && (sp.charAt(i) == ' ')) {
-                        i++;
-                    }
+        public void reparse(Spanned sp) {
+            mRecipients.clear();
+            mNumbers.clear();
+            update(sp, 0, 0, sp.length());
+        }
 
-                    start = i;
-                } else {
+        private void update(Spanned sp, int start, int before, int count) {
+            final int delta = count - before;
+            final int changeEnd = start + count;
+            final int size = mRecipients.size();
+
+            // Resume parsing after the last recipient that ends before the change.
+            final int first = firstResumingAfter(start);
+            int i = first > 0 ? mRecipients.get(first - 1).next : 0;
+            final int len = sp.length();
+            if (first > 0) {
+                while (i < len && sp.charAt(i) == ' ') {
                     i++;
                 }
             }
 
-            mPreviousSpanned = sp;
-            mPreviousSpannedNumbers = list;
-
-            return list;
-        }
-
-        public String getNumbersString() {
-            Spanned sp = RecipientsEditor.this.getText();
-            int len = sp.length();
-            StringBuilder sb = new StringBuilder();
-            int start = 0;
-            int i = 0;
+            // Parse like the whole text used to be parsed, until a recipient ends where an old
+            // one ended past the change; everything after it is unchanged.
+            final ArrayList<Recipient> parsed = new ArrayList<Recipient>();
+            int resync = first;
+            int resumeFrom = size;
+            int tokenStart = i;
             while (i < len + 1) {
                 char c;
                 if ((i == len) || ((c = sp.charAt(i)) == ',') || (c == ';')) {
-                    if (i > start) {
-                        sb.append("'").append(getNumberAt(sp, start, i, mContext)).append("',");
-                        // calculate the recipients total length. This is so if
-                        // the name contains
-                        // commas or semis, we'll skip over the whole name to
-                        // the next
-                        // recipient, rather than parsing this single name into
-                        // multiple
-                        // recipients.
-                        int spanLen = getSpanLength(sp, start, i, mContext);
+                    final int tokenEnd = i;
+                    final boolean hasToken = i > tokenStart;
+                    if (hasToken) {
+                        // Skip over the whole annotated recipient, whose name may contain
+                        // commas or semis.
+                        int spanLen = getSpanLength(sp, tokenStart, i, mContext);
                         if (spanLen > i) {
                             i = spanLen;
                         }
@@ -472,17 +514,62 @@ public class RecipientsEditor extends RecipientEditTextView {
 
                     i++;
 
+                    if (hasToken) {
+                        parsed.add(new Recipient(tokenStart, tokenEnd, i));
+                        if (i > changeEnd) {
+                            while (resync < size && mRecipients.get(resync).next + delta < i) {
+                                resync++;
+                            }
+                            if (resync < size && mRecipients.get(resync).next + delta == i) {
+                                resumeFrom = resync + 1;
+                                break;
+                            }
+                        }
+                    }
+
                     while ((i < len) && (sp.charAt(i) == ' ')) {
                         i++;
                     }
 
-                    start = i;
+                    tokenStart = i;
                 } else {
                     i++;
                 }
             }
 
-            return (sb.length() != 0) ? (sb.deleteCharAt(sb.length() - 1).toString()) : null;
+            final ArrayList<String> numbers = new ArrayList<String>(parsed.size());
+            for (Recipient recipient : parsed) {
+                numbers.add(getNumberAt(sp, recipient.start, recipient.end, mContext));
+            }
+
+            // Splice the reparsed recipients in and move the unchanged ones after them.
+            for (int j = resumeFrom; j < size; j++) {
+                final Recipient recipient = mRecipients.get(j);
+                recipient.start += delta;
+                recipient.end += delta;
+                recipient.next += delta;
+            }
+            mRecipients.subList(first, resumeFrom).clear();
+            mRecipients.addAll(first, parsed);
+            mNumbers.subList(first, resumeFrom).clear();
+            mNumbers.addAll(first, numbers);
+
+            mNumbersStringValid = false;
+        }
+
+        /** Returns the index of the first recipient that parsing resumes after past offset. */
+        private int firstResumingAfter(int offset) {
+            int low = 0;
+            int high = mRecipients.size();
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mRecipients.get(mid).next <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
         }
     }
 }
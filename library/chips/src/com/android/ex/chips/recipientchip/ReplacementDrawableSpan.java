@@ -24,6 +24,10 @@ public class ReplacementDrawableSpan extends ReplacementSpan {
         mExtraMargin = margin;
     }
 
+    public Drawable getDrawable() {
+        return mDrawable;
+    }
+
     private void setupFontMetrics(Paint.FontMetricsInt fm, Paint paint) {
         mWorkPaint.set(paint);
         if (fm != null) {